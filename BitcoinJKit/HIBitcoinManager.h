@@ -22,6 +22,8 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
 #define kHI_PREPARE_SEND_COINS_DID_FAIL_UNKNOWN -100
 
 #define kHIBitcoinManagerCoinsReceivedNotification @"kJHIBitcoinManagerCoinsReceivedNotification"
+#define kHIBitcoinManagerSendRequestSucceededNotification @"kJHIBitcoinManagerSendRequestSucceededNotification"  //<<< Sent object is the request id (NSNumber), userInfo holds the transaction hash under @"txid"
+#define kHIBitcoinManagerSendRequestFailedNotification @"kJHIBitcoinManagerSendRequestFailedNotification"        //<<< Sent object is the request id (NSNumber)
 
 /** HIBitcoinManager is a class responsible for managing all Bitcoin actions app should do 
  *
@@ -45,7 +47,7 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
 @property (nonatomic, readonly) long totalBlocks;                            //<<< Double value indicating the progress of network sync. Values are from 0.0 to 1.0.
 @property (nonatomic, readonly) NSUInteger peerCount;                            //<<< Integer value indicating how many peers are connected.
 @property (nonatomic, readonly, getter = walletAddress) NSString *walletAddress;    //<<< Returns wallets main address. Creates one if none exists yet
-@property (nonatomic, readonly, getter = allWalletAddresses) NSArray *allWalletAddresses;    //<<< Returns all wallet addresses.
+@property (nonatomic, readonly, getter = allWalletAddresses) NSArray *allWalletAddresses;    //<<< Returns all wallet addresses handed out so far, not those the key pool generated ahead of time.
 @property (nonatomic, readonly) NSString *walletFileBase64String;    //<<< Returns the wallet file as base64 string.
 
 @property (nonatomic, readonly, getter = isWalletEncrypted) BOOL isWalletEncrypted; //<<< Returns YES if wallet is encrypted. NO - otherwise
@@ -166,6 +168,16 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
  */
 - (void)prepareSendCoins:(nanobtc_t)coins toReceipent:(NSString *)receipent comment:(NSString *)comment password:(NSData *)password returnFee:(nanobtc_t *)feeRetVal error:(NSError **)error;
 
+/** Prepares one transaction paying several receipents
+ *
+ * @param coins Amounts in satoshis (NSNumber), one per receipent
+ * @param receipents Receipent address hashes
+ * @param password optional wallet password
+ *
+ * Commit the transaction with commitPreparedTransaction: like a single payment.
+ */
+- (void)prepareSendCoins:(NSArray *)coins toReceipents:(NSArray *)receipents password:(NSData *)password returnFee:(nanobtc_t *)feeRetVal error:(NSError **)error;
+
 - (NSString *)commitPreparedTransaction:(NSError **)error;
 - (void)clearSendRequest:(NSError **)error;
 
@@ -37,10 +37,13 @@
 - (void)onSynchronizationChanged:(double)progress blockCount:(long)blockCount totalBlocks:(long)totalBlocks;
 - (void)onPeerCountChanged:(int)peerCount;
 - (void)onTransactionChanged:(NSString *)txid;
+- (void)onTransactionsChanged:(NSArray *)txids;
 - (void)onTransactionSucceeded:(NSString *)txid;
 - (void)onCoinsReceived:(NSString *)txid;
 - (void)onWalletChanged;
 - (void)onTransactionFailed;
+- (void)onSendRequestSucceeded:(int64_t)requestId txid:(NSString *)txid;
+- (void)onSendRequestFailed:(int64_t)requestId;
 - (void)handleJavaException:(jthrowable)exception useExceptionHandler:(BOOL)useHandler error:(NSError **)returnedError;
 - (void)checkBalance:(NSTimer *)timer;
 
@@ -66,6 +69,19 @@ jstring JStringFromNSString(JNIEnv *env, NSString *string)
     return (*env)->NewStringUTF(env, [string UTF8String]);
 }
 
+jobjectArray JStringArrayFromNSArray(JNIEnv *env, NSArray *array)
+{
+    jclass stringClass = (*env)->FindClass(env, "java/lang/String");
+    jobjectArray stringArray = (*env)->NewObjectArray(env, (jsize)array.count, stringClass, NULL);
+    for (NSUInteger i = 0; i < array.count; i++)
+    {
+        jstring string = JStringFromNSString(env, [[array objectAtIndex:i] description]);
+        (*env)->SetObjectArrayElement(env, stringArray, (jsize)i, string);
+        (*env)->DeleteLocalRef(env, string);
+    }
+    return stringArray;
+}
+
 jarray JCharArrayFromNSData(JNIEnv *env, NSData *data)
 {
     jsize length = (jsize)(data.length / sizeof(jchar));
@@ -113,6 +129,22 @@ JNIEXPORT void JNICALL onTransactionChanged (JNIEnv *env, jobject thisobject, js
 }
 
 
+JNIEXPORT void JNICALL onTransactionsChanged (JNIEnv *env, jobject thisobject, jobjectArray txids)
+{
+    NSAutoreleasePool *pool = [NSAutoreleasePool new];
+    jsize count = (*env)->GetArrayLength(env, txids);
+    NSMutableArray *txidArray = [NSMutableArray arrayWithCapacity:count];
+    for (jsize i = 0; i < count; i++)
+    {
+        jstring txid = (jstring)(*env)->GetObjectArrayElement(env, txids, i);
+        [txidArray addObject:NSStringFromJString(env, txid)];
+        (*env)->DeleteLocalRef(env, txid);
+    }
+    [[HIBitcoinManager defaultManager] onTransactionsChanged:txidArray];
+    
+    [pool release];
+}
+
 JNIEXPORT void JNICALL onWalletChanged (JNIEnv *env, jobject thisobject)
 {
     NSAutoreleasePool *pool = [NSAutoreleasePool new];
@@ -151,6 +183,29 @@ JNIEXPORT void JNICALL onTransactionSucceeded (JNIEnv *env, jobject thisobject,
     [pool release];
 }
 
+JNIEXPORT void JNICALL onSendRequestSucceeded (JNIEnv *env, jobject thisobject, jlong requestId, jstring txid)
+{
+    NSAutoreleasePool *pool = [NSAutoreleasePool new];
+    if (txid)
+    {
+        const char *txc = (*env)->GetStringUTFChars(env, txid, NULL);
+        
+        NSString *bStr = [NSString stringWithUTF8String:txc];
+        (*env)->ReleaseStringUTFChars(env, txid, txc);
+        [[HIBitcoinManager defaultManager] onSendRequestSucceeded:requestId txid:bStr];
+    }
+    
+    [pool release];
+}
+
+JNIEXPORT void JNICALL onSendRequestFailed (JNIEnv *env, jobject thisobject, jlong requestId)
+{
+    NSAutoreleasePool *pool = [NSAutoreleasePool new];
+    [[HIBitcoinManager defaultManager] onSendRequestFailed:requestId];
+    
+    [pool release];
+}
+
 JNIEXPORT void JNICALL onException(JNIEnv *env, jobject thisobject, jthrowable jexception)
 {
     NSAutoreleasePool *pool = [NSAutoreleasePool new];
@@ -170,23 +225,51 @@ JNIEXPORT void JNICALL receiveLogFromJVM(JNIEnv *env, jobject thisobject, jstrin
                                          int lineNumber, jint level, jstring msg)
 {
     NSAutoreleasePool *pool = [NSAutoreleasePool new];
-    const char *fileNameString = (*env)->GetStringUTFChars(env, fileName, NULL);
-    const char *methodNameString = (*env)->GetStringUTFChars(env, methodName, NULL);
+    // the location is null when the logger does not capture it
+    const char *fileNameString = fileName ? (*env)->GetStringUTFChars(env, fileName, NULL) : NULL;
+    const char *methodNameString = methodName ? (*env)->GetStringUTFChars(env, methodName, NULL) : NULL;
     
     NSLog(@"%@", (NSString *)NSStringFromJString(env, msg));
     
-    (*env)->ReleaseStringUTFChars(env, fileName, fileNameString);
-    (*env)->ReleaseStringUTFChars(env, methodName, methodNameString);
+    if (fileNameString)
+    {
+        (*env)->ReleaseStringUTFChars(env, fileName, fileNameString);
+    }
+    if (methodNameString)
+    {
+        (*env)->ReleaseStringUTFChars(env, methodName, methodNameString);
+    }
+    [pool release];
+}
+
+JNIEXPORT void JNICALL receiveLogBatchFromJVM(JNIEnv *env, jobject thisobject, jobjectArray fileNames,
+                                              jobjectArray methodNames, jintArray lineNumbers, jintArray levels,
+                                              jobjectArray messages, jint count)
+{
+    // one pool for the whole batch, the logs come in from the Java log delivery thread
+    NSAutoreleasePool *pool = [NSAutoreleasePool new];
+    for (jint i = 0; i < count; i++)
+    {
+        jstring msg = (jstring)(*env)->GetObjectArrayElement(env, messages, i);
+        if (msg)
+        {
+            NSLog(@"%@", (NSString *)NSStringFromJString(env, msg));
+            (*env)->DeleteLocalRef(env, msg);
+        }
+    }
     [pool release];
 }
 
 static JNINativeMethod methods[] = {
     {"onBalanceChanged",        "()V",                                     (void *)&onBalanceChanged},
     {"onTransactionChanged",    "(Ljava/lang/String;)V",                   (void *)&onTransactionChanged},
+    {"onTransactionsChanged",   "([Ljava/lang/String;)V",                  (void *)&onTransactionsChanged},
     {"onHICoinsReceived",       "(Ljava/lang/String;)V",                   (void *)&onCoinsReceived},
     {"onHIWalletChanged",       "()V",                                     (void *)&onWalletChanged},
     {"onTransactionSuccess",    "(Ljava/lang/String;)V",                   (void *)&onTransactionSucceeded},
     {"onTransactionFailed",     "()V",                                     (void *)&onTransactionFailed},
+    {"onSendRequestSuccess",    "(JLjava/lang/String;)V",                  (void *)&onSendRequestSucceeded},
+    {"onSendRequestFailed",     "(J)V",                                    (void *)&onSendRequestFailed},
     {"onPeerCountChanged",       "(I)V",                                   (void *)&onPeerCountChanged},
     {"onSynchronizationUpdate", "(DJJ)V",                                  (void *)&onSynchronizationUpdate}
 };
@@ -589,13 +672,15 @@ static HIBitcoinManager *_defaultManager = nil;
         _managerClass = [self jClassForClass:@"com/hive/bitcoinkit/BitcoinManager"];
         (*_jniEnv)->RegisterNatives(_jniEnv, _managerClass, methods, sizeof(methods)/sizeof(methods[0]));
         
-        JNINativeMethod loggerMethod;
-        loggerMethod.name = "receiveLogFromJVM";
-        loggerMethod.signature = "(Ljava/lang/String;Ljava/lang/String;IILjava/lang/String;)V";
-        loggerMethod.fnPtr = &receiveLogFromJVM;
+        JNINativeMethod loggerMethods[] = {
+            {"receiveLogFromJVM",      "(Ljava/lang/String;Ljava/lang/String;IILjava/lang/String;)V",
+                                       (void *)&receiveLogFromJVM},
+            {"receiveLogBatchFromJVM", "([Ljava/lang/String;[Ljava/lang/String;[I[I[Ljava/lang/String;I)V",
+                                       (void *)&receiveLogBatchFromJVM}
+        };
         
         jclass loggerClass = [self jClassForClass:@"org/slf4j/impl/CocoaLogger"];
-        (*_jniEnv)->RegisterNatives(_jniEnv, loggerClass, &loggerMethod, 1);
+        (*_jniEnv)->RegisterNatives(_jniEnv, loggerClass, loggerMethods, sizeof(loggerMethods)/sizeof(loggerMethods[0]));
         
         jmethodID constructorM = (*_jniEnv)->GetMethodID(_jniEnv, _managerClass, "<init>", "()V");
         if (constructorM)
@@ -1184,6 +1269,35 @@ static HIBitcoinManager *_defaultManager = nil;
     }
 }
 
+- (void)prepareSendCoins:(NSArray *)coins toReceipents:(NSArray *)receipents password:(NSData *)passwordData returnFee:(nanobtc_t *)feeRetVal error:(NSError **)error
+{
+    jobjectArray jAmounts = JStringArrayFromNSArray(_jniEnv, coins);
+    jobjectArray jReceipents = JStringArrayFromNSArray(_jniEnv, receipents);
+    jstring feeJString = nil;
+    
+    if(passwordData)
+    {
+        jarray charArray = JCharArrayFromNSData(_jniEnv, passwordData);
+        feeJString = [self callObjectMethodWithName:"createBatchSendRequest" error:error signature:"([Ljava/lang/String;[Ljava/lang/String;[C)Ljava/lang/String;", jAmounts, jReceipents, charArray];
+    }
+    else
+    {
+        feeJString = [self callObjectMethodWithName:"createBatchSendRequest" error:error signature:"([Ljava/lang/String;[Ljava/lang/String;)Ljava/lang/String;", jAmounts, jReceipents];
+    }
+    
+    if (feeJString)
+    {
+        *feeRetVal = [NSStringFromJString(_jniEnv, feeJString) longLongValue];
+    }
+    else
+    {
+        if(error && !*error)
+        {
+            *error = [NSError errorWithDomain:@"BitcoinKit" code:1001 userInfo:nil];
+        }
+    }
+}
+
 - (NSUInteger)transactionCount
 {
     jclass mgrClass = [self jClassForClass:@"com/hive/bitcoinkit/BitcoinManager"];
@@ -1283,6 +1397,23 @@ static HIBitcoinManager *_defaultManager = nil;
     });
 }
 
+- (void)onTransactionsChanged:(NSArray *)txids
+{
+    if(_syncProgress < 1.0)
+    {
+        // same as onTransactionChanged:, the list is rebuilt once the sync is done
+        return;
+    }
+    dispatch_async(dispatch_get_main_queue(), ^{
+        [self willChangeValueForKey:@"balance"];
+        for (NSString *txid in txids)
+        {
+            [[NSNotificationCenter defaultCenter] postNotificationName:kHIBitcoinManagerTransactionChangedNotification object:txid];
+        }
+        [self didChangeValueForKey:@"balance"];
+    });
+}
+
 - (void)onCoinsReceived:(NSString *)txid
 {
     dispatch_async(dispatch_get_main_queue(), ^{
@@ -1329,6 +1460,23 @@ static HIBitcoinManager *_defaultManager = nil;
     });
 }
 
+- (void)onSendRequestSucceeded:(int64_t)requestId txid:(NSString *)txid
+{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        [[NSNotificationCenter defaultCenter] postNotificationName:kHIBitcoinManagerSendRequestSucceededNotification
+                                                            object:[NSNumber numberWithLongLong:requestId]
+                                                          userInfo:[NSDictionary dictionaryWithObject:txid forKey:@"txid"]];
+    });
+}
+
+- (void)onSendRequestFailed:(int64_t)requestId
+{
+    dispatch_async(dispatch_get_main_queue(), ^{
+        [[NSNotificationCenter defaultCenter] postNotificationName:kHIBitcoinManagerSendRequestFailedNotification
+                                                            object:[NSNumber numberWithLongLong:requestId]];
+    });
+}
+
 #pragma mark helpers
 
 
@@ -0,0 +1,103 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * The calls the app makes to show the wallet, on a loaded wallet as the app sees it between block chain events.
+ * getTransaction walks the whole history, so with more transactions than the view cache holds it measures
+ * rendering views rather than cache hits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class BridgeBenchmark
+{
+    private static final int PAGE_SIZE = 50;
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int transactions;
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int keys;
+
+    private File dataDirectory;
+    private OfflineBitcoinManager manager;
+    private int transactionCount;
+    private int nextTransaction;
+    private int nextPage;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        StubCocoaLogger.silenceNativeLoggers();
+
+        dataDirectory = new WalletFixture(transactions, keys).copyToDataDirectory();
+        manager = new OfflineBitcoinManager(dataDirectory.getPath(), WalletFixture.APP_NAME);
+        manager.loadWallet();
+        transactionCount = manager.getTransactionCount();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        WalletFixture.deleteDataDirectory(dataDirectory);
+    }
+
+    @Benchmark
+    public String getTransactionsFirstPage()
+    {
+        return manager.getTransactions(0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public String getTransactionsScrolling()
+    {
+        int from = nextPage * PAGE_SIZE;
+        nextPage = (from + PAGE_SIZE < transactionCount) ? nextPage + 1 : 0;
+        return manager.getTransactions(from, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public String getTransaction()
+    {
+        int index = nextTransaction;
+        nextTransaction = (index + 1 < transactionCount) ? index + 1 : 0;
+        return manager.getTransaction(index);
+    }
+
+    @Benchmark
+    public String getAllWalletAddressesJSON()
+    {
+        return manager.getAllWalletAddressesJSON();
+    }
+
+    @Benchmark
+    public String getBalanceString()
+    {
+        return manager.getBalanceString(0);
+    }
+
+    @Benchmark
+    public String getEstimatedBalanceString()
+    {
+        return manager.getBalanceString(1);
+    }
+}
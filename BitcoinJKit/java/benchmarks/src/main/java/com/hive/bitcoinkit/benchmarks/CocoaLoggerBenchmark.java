@@ -0,0 +1,106 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.CocoaLogger;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * The Java side of a log call (level check, formatting, finding the caller) with the native side stubbed out.
+ * The contended variant logs from as many threads as peers and the wallet use during a block chain download.
+ * locationMode is one of the CocoaLogger.HILoggerLocation constants. With asynchronous delivery the time is what
+ * the logging thread spends, the oldest messages are dropped if the delivery thread falls behind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CocoaLoggerBenchmark
+{
+    private static final Exception EXCEPTION = new IllegalStateException("benchmark");
+
+    @Param({ "0", "1", "2", "3" })
+    public int locationMode;
+
+    @Param({ "false", "true" })
+    public boolean asynchronous;
+
+    private StubCocoaLogger enabled;
+    private StubCocoaLogger disabled;
+    private int height;
+
+    @Setup
+    public void setUp() throws InterruptedException
+    {
+        StubCocoaLogger.silenceNativeLoggers();
+        CocoaLogger.setLocationMode(locationMode);
+
+        enabled = new StubCocoaLogger("com.hive.bitcoinkit.benchmarks.Enabled");
+        enabled.setLevel(CocoaLogger.HILoggerLevelDebug);
+        disabled = new StubCocoaLogger("com.hive.bitcoinkit.benchmarks.Disabled");
+        disabled.setLevel(CocoaLogger.HILoggerLevelWarn);
+
+        if (asynchronous)
+        {
+            StubCocoaLogger.startAsynchronousDelivery(new StubCocoaLogger("Sink"), CocoaLogger.DEFAULT_ASYNC_CAPACITY,
+                                                      CocoaLogger.HILoggerOverflowDropOldest, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        CocoaLogger.stopAsynchronousDelivery();
+    }
+
+    @Benchmark
+    public long debugMessage()
+    {
+        enabled.debug("Downloaded block");
+        return enabled.getReceivedCount();
+    }
+
+    @Benchmark
+    public long debugFormatted()
+    {
+        enabled.debug("Downloaded block {} of {}", height++, 300000);
+        return enabled.getReceivedLength();
+    }
+
+    @Benchmark
+    public long debugDisabled()
+    {
+        disabled.debug("Downloaded block {} of {}", height++, 300000);
+        return disabled.getReceivedCount();
+    }
+
+    @Benchmark
+    public long errorWithException()
+    {
+        enabled.error("Peer failed", EXCEPTION);
+        return enabled.getReceivedCount();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long debugFormattedContended()
+    {
+        enabled.debug("Downloaded block {} of {}", height++, 300000);
+        return enabled.getReceivedLength();
+    }
+}
@@ -0,0 +1,102 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.hive.bitcoinkit.IndexedCoinSelector;
+import com.hive.bitcoinkit.UnspentOutputIndex;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * Picking the inputs of a payment, as completeTx does it: bitcoinj's selector sorts all spend candidates of the
+ * wallet, the indexed selectors walk the unspent output index and ignore the candidates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class CoinSelectionBenchmark
+{
+    @Param({ "1000", "10000", "100000" })
+    public int transactions;
+
+    @Param({ "100" })
+    public int keys;
+
+    @Param({ "0.01", "1", "50" })
+    public String amount;
+
+    private Wallet wallet;
+    private BigInteger target;
+    private LinkedList<TransactionOutput> candidates;
+    private CoinSelector fewestInputs;
+    private CoinSelector oldestFirst;
+    private CoinSelector closestMatch;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        StubCocoaLogger.silenceNativeLoggers();
+
+        wallet = Wallet.loadFromFile(new WalletFixture(transactions, keys).getFile());
+        target = Utils.toNanoCoins(amount);
+        candidates = wallet.calculateAllSpendCandidates(true);
+
+        UnspentOutputIndex index = new UnspentOutputIndex();
+        index.rebuild(wallet);
+        fewestInputs = new IndexedCoinSelector(index, IndexedCoinSelector.Strategy.FEWEST_INPUTS);
+        oldestFirst = new IndexedCoinSelector(index, IndexedCoinSelector.Strategy.OLDEST_FIRST);
+        closestMatch = new IndexedCoinSelector(index, IndexedCoinSelector.Strategy.CLOSEST_MATCH);
+    }
+
+    /** Done by completeTx before every selection, whichever selector is used. */
+    @Benchmark
+    public LinkedList<TransactionOutput> spendCandidates()
+    {
+        return wallet.calculateAllSpendCandidates(true);
+    }
+
+    @Benchmark
+    public CoinSelection bitcoinjDefault()
+    {
+        return wallet.getCoinSelector().select(target, candidates);
+    }
+
+    @Benchmark
+    public CoinSelection indexedFewestInputs()
+    {
+        return fewestInputs.select(target, candidates);
+    }
+
+    @Benchmark
+    public CoinSelection indexedOldestFirst()
+    {
+        return oldestFirst.select(target, candidates);
+    }
+
+    @Benchmark
+    public CoinSelection indexedClosestMatch()
+    {
+        return closestMatch.select(target, candidates);
+    }
+}
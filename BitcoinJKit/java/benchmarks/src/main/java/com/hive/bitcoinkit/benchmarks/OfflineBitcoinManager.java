@@ -0,0 +1,85 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import com.hive.bitcoinkit.BitcoinManager;
+
+import org.slf4j.LoggerFactory;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * BitcoinManager whose native callbacks do nothing, for running the bridge without the Cocoa host. The wallet is
+ * loaded from the data directory but the block chain is never started, so nothing touches the network.
+ */
+public class OfflineBitcoinManager extends BitcoinManager
+{
+    public OfflineBitcoinManager(String dataDirectory, String appName)
+    {
+        super();
+        StubCocoaLogger.silence(LoggerFactory.getLogger(BitcoinManager.class));
+
+        // RegTest addresses look like TestNet3 ones, and the bridge only knows main and test net
+        setTestingNetwork(true);
+        setDataDirectory(dataDirectory);
+        setAppName(appName);
+    }
+
+    @Override
+    public void onTransactionChanged(String txid)
+    {
+    }
+
+    @Override
+    public void onTransactionsChanged(String[] txids)
+    {
+    }
+
+    @Override
+    public void onTransactionFailed()
+    {
+    }
+
+    @Override
+    public void onTransactionSuccess(String txid)
+    {
+    }
+
+    @Override
+    public void onSendRequestSuccess(long requestId, String txid)
+    {
+    }
+
+    @Override
+    public void onSendRequestFailed(long requestId)
+    {
+    }
+
+    @Override
+    public void onHICoinsReceived(String txid)
+    {
+    }
+
+    @Override
+    public void onHIWalletChanged()
+    {
+    }
+
+    @Override
+    public void onSynchronizationUpdate(double progress, long blockCount, long blockHeight)
+    {
+    }
+
+    @Override
+    public void onPeerCountChanged(int peersConnected)
+    {
+    }
+
+    @Override
+    public void onBalanceChanged()
+    {
+    }
+
+    @Override
+    public void onException(Throwable exception)
+    {
+        exception.printStackTrace();
+    }
+}
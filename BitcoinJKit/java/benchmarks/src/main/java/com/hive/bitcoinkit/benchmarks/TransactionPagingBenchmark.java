@@ -0,0 +1,79 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.hive.bitcoinkit.TransactionIndex;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * Reading one page of the history, without the view cache and JSON rendering of the bridge: before the
+ * TransactionIndex, getTransactions copied and sorted the whole history with getTransactionsByTime() for every
+ * page. Both scroll through the history page by page, starting over at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class TransactionPagingBenchmark
+{
+    private static final int PAGE_SIZE = 50;
+
+    @Param({ "1000", "10000", "100000" })
+    public int transactions;
+
+    @Param({ "100" })
+    public int keys;
+
+    private Wallet wallet;
+    private TransactionIndex index;
+    private int transactionCount;
+    private int nextIndexPage;
+    private int nextWalletPage;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        StubCocoaLogger.silenceNativeLoggers();
+
+        wallet = Wallet.loadFromFile(new WalletFixture(transactions, keys).getFile());
+        index = new TransactionIndex();
+        index.rebuild(wallet);
+        transactionCount = index.size();
+    }
+
+    @Benchmark
+    public List<Transaction> indexPage()
+    {
+        int from = nextIndexPage * PAGE_SIZE;
+        nextIndexPage = (from + PAGE_SIZE < transactionCount) ? nextIndexPage + 1 : 0;
+        return index.getRange(from, PAGE_SIZE);
+    }
+
+    /** What getTransactions did for every page before the index. */
+    @Benchmark
+    public List<Transaction> getTransactionsByTimePage()
+    {
+        int from = nextWalletPage * PAGE_SIZE;
+        nextWalletPage = (from + PAGE_SIZE < transactionCount) ? nextWalletPage + 1 : 0;
+        List<Transaction> all = wallet.getTransactionsByTime();
+        int to = (from + PAGE_SIZE < all.size()) ? from + PAGE_SIZE : all.size();
+        return all.subList(from, to);
+    }
+}
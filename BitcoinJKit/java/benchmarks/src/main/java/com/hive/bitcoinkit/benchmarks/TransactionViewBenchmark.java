@@ -0,0 +1,62 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.hive.bitcoinkit.TransactionView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * What getJSONFromTransaction costs when the view is not cached: reading the scripts and values of one
+ * transaction against the wallet and writing the JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class TransactionViewBenchmark
+{
+    @Param({ "1000", "100000" })
+    public int transactions;
+
+    @Param({ "10", "10000" })
+    public int keys;
+
+    private Wallet wallet;
+    private List<Transaction> history;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        StubCocoaLogger.silenceNativeLoggers();
+
+        wallet = Wallet.loadFromFile(new WalletFixture(transactions, keys).getFile());
+        history = new ArrayList<Transaction>(wallet.getTransactions(false));
+    }
+
+    @Benchmark
+    public String renderTransaction()
+    {
+        Transaction tx = history.get(next);
+        next = (next + 1 < history.size()) ? next + 1 : 0;
+        return TransactionView.fromTransaction(tx, wallet, wallet.getParams()).toJSON();
+    }
+}
@@ -0,0 +1,154 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * Saving and loading the wallet file through the bridge, each call timed on its own: they take long enough, and
+ * a load needs a manager that has no wallet yet. Loading includes what the bridge does before the first balance
+ * can be shown (indexes, address cache, key pool). With journaling, saving writes a new snapshot and starts an
+ * empty journal; WalletSyncBenchmark measures what is written for each change in between.
+ *
+ * After every load the heap is garbage collected and the heap the loaded manager keeps is recorded, outside of
+ * the timed part; the average is printed when the trial ends.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class WalletFileBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Fixture
+    {
+        @Param({ "1000", "10000", "100000", "1000000" })
+        public int transactions;
+
+        @Param({ "10", "1000", "10000" })
+        public int keys;
+
+        @Param({ "false", "true" })
+        public boolean lazyLoading;
+
+        @Param({ "false", "true" })
+        public boolean journaling;
+
+        WalletFixture wallet;
+
+        @Setup
+        public void setUp() throws Exception
+        {
+            StubCocoaLogger.silenceNativeLoggers();
+
+            wallet = new WalletFixture(transactions, keys);
+            wallet.getFile();
+        }
+    }
+
+    /** A loaded wallet, saved again and again. */
+    @State(Scope.Benchmark)
+    public static class Loaded
+    {
+        File dataDirectory;
+        OfflineBitcoinManager manager;
+
+        @Setup
+        public void setUp(Fixture fixture) throws Exception
+        {
+            dataDirectory = fixture.wallet.copyToDataDirectory();
+            manager = new OfflineBitcoinManager(dataDirectory.getPath(), WalletFixture.APP_NAME);
+            manager.setLazyWalletLoadingEnabled(fixture.lazyLoading);
+            manager.setWalletJournalingEnabled(fixture.journaling);
+            manager.loadWallet();
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            WalletFixture.deleteDataDirectory(dataDirectory);
+        }
+    }
+
+    /** A manager with a fresh copy of the wallet file, not loaded yet. */
+    @State(Scope.Thread)
+    public static class Unloaded
+    {
+        File dataDirectory;
+        OfflineBitcoinManager manager;
+
+        long heapBeforeLoad;
+        long residentHeap;
+        int loads;
+
+        @Setup(Level.Invocation)
+        public void setUp(Fixture fixture) throws Exception
+        {
+            dataDirectory = fixture.wallet.copyToDataDirectory();
+            manager = new OfflineBitcoinManager(dataDirectory.getPath(), WalletFixture.APP_NAME);
+            manager.setLazyWalletLoadingEnabled(fixture.lazyLoading);
+            manager.setWalletJournalingEnabled(fixture.journaling);
+            heapBeforeLoad = heapUsedAfterGC();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown()
+        {
+            if (manager.getTransactionCount() > 0)
+            {
+                // the manager is still reachable from here, so only the garbage of loading is collected
+                residentHeap += heapUsedAfterGC() - heapBeforeLoad;
+                loads++;
+            }
+            WalletFixture.deleteDataDirectory(dataDirectory);
+        }
+
+        @TearDown
+        public void printResidentHeap()
+        {
+            if (loads > 0)
+            {
+                System.out.println();
+                System.out.println("resident heap after loading: " + residentHeap / loads / 1024 + " KB on average");
+            }
+        }
+
+        private static long heapUsedAfterGC()
+        {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++)
+            {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    @Benchmark
+    public void saveWallet(Loaded loaded)
+    {
+        loaded.manager.saveWallet();
+    }
+
+    @Benchmark
+    public String loadWallet(Unloaded unloaded) throws Exception
+    {
+        unloaded.manager.loadWallet();
+        return unloaded.manager.getBalanceString(0);
+    }
+}
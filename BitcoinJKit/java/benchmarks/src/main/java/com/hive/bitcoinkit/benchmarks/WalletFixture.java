@@ -0,0 +1,197 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.RegTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.io.Files;
+import com.hive.bitcoinkit.KeyPool;
+import com.hive.bitcoinkit.KeyPoolExtension;
+import com.hive.bitcoinkit.LastWalletChangeExtension;
+import com.hive.bitcoinkit.RekeyableWallet;
+import com.hive.bitcoinkit.WalletJournalExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic RegTest wallets built offline: the given number of keys, and transactions that pay one of them from
+ * outside (with made up signatures, nothing verifies them), about one in five spending an earlier output of the wallet to a foreign address with change back. The
+ * transactions are put into the wallet as if they had been mined, ten per block, and the chain tip is set to the
+ * last of those blocks. The key pool is full, as an earlier session would have left it, so that loading doesn't
+ * generate keys and save the wallet in the background. A fixed seed makes the same sizes give the same wallet, so
+ * it is written once to the temp directory and copied from there by later runs and forks.
+ */
+public class WalletFixture
+{
+    public static final String APP_NAME = "bitcoinkit";
+
+    // part of the file name, so that wallets left behind by an older fixture are built again
+    private static final int VERSION = 2;
+    private static final long SEED = 0x4249544b4954L;
+    private static final int TRANSACTIONS_PER_BLOCK = 10;
+    private static final int SPEND_EVERY = 5;
+    private static final int SENDERS = 16;
+    private static final long GENESIS_TIME = 1388534400L;
+
+    private final int transactionCount;
+    private final int keyCount;
+    private final File file;
+
+    public WalletFixture(int transactionCount, int keyCount)
+    {
+        this.transactionCount = transactionCount;
+        this.keyCount = keyCount;
+        this.file = new File(System.getProperty("java.io.tmpdir"),
+                             "bitcoinkit-fixture-" + VERSION + "-" + transactionCount + "-" + keyCount + ".wallet");
+    }
+
+    /** The wallet file, built first if no earlier run left it behind. */
+    public synchronized File getFile() throws IOException
+    {
+        if (!file.exists())
+        {
+            File partial = new File(file.getPath() + ".tmp");
+            build().saveToFile(partial);
+            if (!partial.renameTo(file))
+            {
+                throw new IOException("Could not move " + partial + " to " + file);
+            }
+        }
+        return file;
+    }
+
+    /** A fresh data directory holding a copy of the wallet file, for a BitcoinManager to load and change. */
+    public File copyToDataDirectory() throws IOException
+    {
+        File directory = Files.createTempDir();
+        Files.copy(getFile(), new File(directory, APP_NAME + ".wallet"));
+        return directory;
+    }
+
+    public static void deleteDataDirectory(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public Wallet build()
+    {
+        NetworkParameters params = RegTestParams.get();
+        Random random = new Random(SEED);
+
+        Wallet wallet = new RekeyableWallet(params);
+        wallet.addExtension(new LastWalletChangeExtension());
+        wallet.addExtension(new WalletJournalExtension());
+        KeyPoolExtension keyPoolExtension = new KeyPoolExtension();
+        keyPoolExtension.setIssuedKeyCount(keyCount);
+        wallet.addExtension(keyPoolExtension);
+
+        List<ECKey> keys = new ArrayList<ECKey>(keyCount);
+        for (int i = 0; i < keyCount; i++)
+        {
+            ECKey key = new ECKey(new BigInteger(255, random).add(BigInteger.ONE));
+            key.setCreationTimeSeconds(GENESIS_TIME);
+            keys.add(key);
+        }
+        wallet.addKeys(keys);
+
+        // payments come in signed by a few outside keys, so the bridge finds a sender address like on the real chain
+        List<ECKey> senders = new ArrayList<ECKey>(SENDERS);
+        for (int i = 0; i < SENDERS; i++)
+        {
+            senders.add(new ECKey(new BigInteger(255, random).add(BigInteger.ONE)));
+        }
+        Address foreignAddress = senders.get(0).toAddress(params);
+        List<Transaction> transactions = new ArrayList<Transaction>(transactionCount);
+        List<TransactionOutput> unspent = new ArrayList<TransactionOutput>();
+        int blocks = (transactionCount + TRANSACTIONS_PER_BLOCK - 1) / TRANSACTIONS_PER_BLOCK;
+
+        for (int i = 0; i < transactionCount; i++)
+        {
+            int height = 1 + i / TRANSACTIONS_PER_BLOCK;
+            Transaction tx = new Transaction(params);
+            boolean spend = (i % SPEND_EVERY == SPEND_EVERY - 1) && !unspent.isEmpty();
+
+            if (spend)
+            {
+                TransactionOutput spent = unspent.remove(random.nextInt(unspent.size()));
+                BigInteger value = spent.getValue();
+                BigInteger sent = value.divide(BigInteger.valueOf(2 + random.nextInt(8)));
+                tx.addOutput(sent, foreignAddress);
+                tx.addOutput(value.subtract(sent), keys.get(random.nextInt(keyCount)));
+                TransactionInput input = tx.addInput(spent);
+                spent.markAsSpent(input);
+            }
+            else
+            {
+                byte[] previous = new byte[32];
+                random.nextBytes(previous);
+                TransactionSignature signature =
+                    new TransactionSignature(new BigInteger(255, random), new BigInteger(255, random));
+                byte[] scriptSig = ScriptBuilder.createInputScript(signature, senders.get(random.nextInt(SENDERS)))
+                                                .getProgram();
+                tx.addInput(new TransactionInput(params, tx, scriptSig,
+                                                 new TransactionOutPoint(params, 0, new Sha256Hash(previous))));
+                tx.addOutput(BigInteger.valueOf(100000 + random.nextInt(100000000)),
+                             keys.get(random.nextInt(keyCount)));
+            }
+
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+            confidence.setAppearedAtChainHeight(height);
+            confidence.setDepthInBlocks(blocks - height + 1);
+            confidence.setSource(TransactionConfidence.Source.NETWORK);
+            tx.setUpdateTime(new Date((GENESIS_TIME + height * 600L) * 1000));
+
+            transactions.add(tx);
+            unspent.add(tx.getOutput(spend ? 1 : 0));
+        }
+
+        // a transaction whose output to the wallet was spent later belongs to the spent pool
+        for (Transaction tx : transactions)
+        {
+            boolean spent = !tx.getOutput(tx.getOutputs().size() - 1).isAvailableForSpending();
+            wallet.addWalletTransaction(new WalletTransaction(spent ? WalletTransaction.Pool.SPENT
+                                                                    : WalletTransaction.Pool.UNSPENT, tx));
+        }
+
+        List<ECKey> pooledKeys = new ArrayList<ECKey>(KeyPool.DEFAULT_LOOKAHEAD);
+        for (int i = 0; i < KeyPool.DEFAULT_LOOKAHEAD; i++)
+        {
+            ECKey key = new ECKey(new BigInteger(255, random).add(BigInteger.ONE));
+            key.setCreationTimeSeconds(GENESIS_TIME);
+            pooledKeys.add(key);
+        }
+        wallet.addKeys(pooledKeys);
+
+        byte[] tip = new byte[32];
+        random.nextBytes(tip);
+        wallet.setLastBlockSeenHash(new Sha256Hash(tip));
+        wallet.setLastBlockSeenHeight(blocks);
+        wallet.setLastBlockSeenTimeSecs(GENESIS_TIME + blocks * 600L);
+        return wallet;
+    }
+}
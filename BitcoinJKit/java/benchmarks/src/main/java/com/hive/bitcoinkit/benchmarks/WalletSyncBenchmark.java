@@ -0,0 +1,191 @@
+package com.hive.bitcoinkit.benchmarks;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import org.bitcoinj.wallet.Protos;
+import com.google.common.io.Files;
+import com.hive.bitcoinkit.KeyPoolExtension;
+import com.hive.bitcoinkit.LastWalletChangeExtension;
+import com.hive.bitcoinkit.RekeyableWallet;
+import com.hive.bitcoinkit.WalletJournal;
+import com.hive.bitcoinkit.WalletJournalExtension;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.impl.StubCocoaLogger;
+
+/**
+ * Persisting the wallet while the chain syncs: every invocation is one new block paying the wallet, received
+ * before the timer starts, and then written the way BitcoinManager writes it, either appended to the
+ * WalletJournal like its wallet listener does or as a full snapshot of the wallet file like autosave does. The
+ * bytes written per received transaction are printed when the trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class WalletSyncBenchmark
+{
+    private static final int TRANSACTIONS_PER_BLOCK = 10;
+
+    @Param({ "1000", "10000", "100000" })
+    public int transactions;
+
+    @Param({ "100" })
+    public int keys;
+
+    @Param({ "false", "true" })
+    public boolean journaling;
+
+    private File dataDirectory;
+    private File walletFile;
+    private File journalFile;
+    private Wallet wallet;
+    private WalletJournal journal;
+    private NetworkParameters params;
+    private Random random;
+    private StoredBlock lastBlock;
+    private List<Transaction> block;
+    private long receivedTransactions;
+    private long bytesWritten;
+    private long journalStart;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        StubCocoaLogger.silenceNativeLoggers();
+
+        dataDirectory = Files.createTempDir();
+        walletFile = new File(dataDirectory, WalletFixture.APP_NAME + ".wallet");
+        journalFile = new File(walletFile.getPath() + ".journal");
+        Files.copy(new WalletFixture(transactions, keys).getFile(), walletFile);
+
+        Protos.Wallet walletProto;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try
+        {
+            walletProto = WalletProtobufSerializer.parseToProto(stream);
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+        wallet = new RekeyableWallet(params);
+        wallet.addExtension(new LastWalletChangeExtension());
+        wallet.addExtension(new KeyPoolExtension());
+        WalletJournalExtension journalExtension = new WalletJournalExtension();
+        wallet.addExtension(journalExtension);
+        new WalletProtobufSerializer().readWallet(walletProto, wallet);
+
+        random = new Random(transactions);
+        lastBlock = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), BigInteger.ONE,
+                                    wallet.getLastBlockSeenHeight());
+
+        if (journaling)
+        {
+            journal = new WalletJournal(walletFile);
+            // compacting would write a snapshot in the background, in the middle of the measurement
+            journal.setCompactionThreshold(Long.MAX_VALUE);
+            journal.start(wallet, journalExtension);
+            journalStart = journalFile.length();
+        }
+    }
+
+    /** Mines the next block and lets the wallet receive it, as the block chain would during a sync. */
+    @Setup(Level.Invocation)
+    public void receiveBlock() throws Exception
+    {
+        Block header = lastBlock.getHeader().cloneAsHeader();
+        header.setNonce(random.nextInt());
+        StoredBlock storedBlock = new StoredBlock(header, lastBlock.getChainWork().add(BigInteger.ONE),
+                                                  lastBlock.getHeight() + 1);
+        List<ECKey> walletKeys = wallet.getKeys();
+
+        block = new ArrayList<Transaction>(TRANSACTIONS_PER_BLOCK);
+        for (int i = 0; i < TRANSACTIONS_PER_BLOCK; i++)
+        {
+            byte[] previous = new byte[32];
+            random.nextBytes(previous);
+            Transaction tx = new Transaction(params);
+            tx.addInput(new TransactionInput(params, tx, new byte[0],
+                                             new TransactionOutPoint(params, 0, new Sha256Hash(previous))));
+            tx.addOutput(BigInteger.valueOf(100000 + random.nextInt(100000000)),
+                         walletKeys.get(random.nextInt(walletKeys.size())));
+            wallet.receiveFromBlock(tx, storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+            block.add(tx);
+        }
+        wallet.notifyNewBestBlock(storedBlock);
+
+        lastBlock = storedBlock;
+        receivedTransactions += TRANSACTIONS_PER_BLOCK;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        if (journal != null)
+        {
+            bytesWritten = journalFile.length() - journalStart;
+            journal.stop();
+        }
+
+        System.out.println();
+        System.out.println((journaling ? "journal: " : "snapshot: ") + bytesWritten + " bytes written for "
+                           + receivedTransactions + " received transactions, "
+                           + bytesWritten / receivedTransactions + " bytes per transaction");
+
+        WalletFixture.deleteDataDirectory(dataDirectory);
+    }
+
+    @Benchmark
+    public void persistBlock() throws Exception
+    {
+        if (journaling)
+        {
+            for (Transaction tx : block)
+            {
+                journal.appendTransactionWithParents(tx);
+            }
+            journal.appendLastBlock();
+        }
+        else
+        {
+            wallet.saveToFile(walletFile);
+            bytesWritten += walletFile.length();
+        }
+    }
+}
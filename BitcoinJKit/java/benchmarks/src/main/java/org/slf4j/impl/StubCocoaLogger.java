@@ -0,0 +1,64 @@
+package org.slf4j.impl;
+
+import org.slf4j.Logger;
+
+/**
+ * CocoaLogger that goes through all of its own work but drops the message instead of handing it to the native
+ * side, so it can run without the Cocoa host. Counts are only exact when read from the thread that delivers.
+ */
+public class StubCocoaLogger extends CocoaLogger
+{
+    private long received;
+    private long receivedLength;
+
+    public StubCocoaLogger(String name)
+    {
+        super(name);
+    }
+
+    /** Turns off the loggers of bitcoinj and the bridge, which would otherwise call into the missing native side. */
+    public static void silenceNativeLoggers()
+    {
+        CocoaLogger.setGlobalLevel(HILoggerLevelError + 1);
+    }
+
+    /** Turns off a logger that was given its own level, like the BitcoinManager one. */
+    public static void silence(Logger logger)
+    {
+        ((CocoaLogger) logger).setLevel(HILoggerLevelError + 1);
+    }
+
+    /** Delivers asynchronously to the given stub instead of the native side. */
+    public static void startAsynchronousDelivery(StubCocoaLogger sink, int capacity, int overflowPolicy,
+                                                 int overflowLevel) throws InterruptedException
+    {
+        CocoaLogger.startAsynchronousDelivery(sink, capacity, overflowPolicy, overflowLevel);
+    }
+
+    @Override
+    public void receiveLogFromJVM(String fileName, String methodName, int lineNumber, int level, String msg)
+    {
+        received++;
+        receivedLength += msg.length() + lineNumber;
+    }
+
+    @Override
+    public void receiveLogBatchFromJVM(String[] fileNames, String[] methodNames, int[] lineNumbers, int[] levels,
+                                       String[] messages, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            receiveLogFromJVM(fileNames[i], methodNames[i], lineNumbers[i], levels[i], messages[i]);
+        }
+    }
+
+    public long getReceivedCount()
+    {
+        return received;
+    }
+
+    public long getReceivedLength()
+    {
+        return receivedLength;
+    }
+}
@@ -0,0 +1,37 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Wallet;
+
+import java.math.BigInteger;
+
+/**
+ * Immutable copy of the wallet balances. Wallet.getBalance takes the wallet lock and rescans the unspent outputs,
+ * so it is computed once per wallet change and then read by any thread without locking.
+ */
+public class BalanceSnapshot
+{
+    private final BigInteger available;
+    private final BigInteger estimated;
+
+    public BalanceSnapshot(BigInteger available, BigInteger estimated)
+    {
+        this.available = available;
+        this.estimated = estimated;
+    }
+
+    public static BalanceSnapshot fromWallet(Wallet wallet)
+    {
+        return new BalanceSnapshot(wallet.getBalance(Wallet.BalanceType.AVAILABLE),
+                                   wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    public BigInteger getAvailable()
+    {
+        return available;
+    }
+
+    public BigInteger getEstimated()
+    {
+        return estimated;
+    }
+}
@@ -18,26 +18,36 @@ import com.google.bitcoin.store.UnreadableWalletException;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.WalletFiles;
 import com.google.common.util.concurrent.*;
 
+import org.bitcoinj.wallet.Protos;
 import org.spongycastle.util.encoders.Base64;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -57,18 +67,115 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
     private int blocksToDownload;
     private int storedChainHeight;
     private int broadcastMinTransactions = -1;
-    private HashSet<Transaction> trackedTransactions;
+    private TransactionConfidenceTracker confidenceTracker;
+    private final NativeEventDispatcher eventDispatcher;
+    private final SyncProgressTracker syncProgress;
     
-    private Wallet.SendRequest pendingSendRequest;
+    // times Wallet.autosaveToFile saves, which run on the wallet's autosave thread one at a time
+    private final WalletFiles.Listener autosaveTimer = new WalletFiles.Listener() {
+        private long start;
+        
+        public void onBeforeAutoSave(File file)
+        {
+            start = System.nanoTime();
+        }
+        
+        public void onAfterAutoSave(File file)
+        {
+            walletSaveLatency.recordSince(start);
+        }
+    };
+    private TransactionIndex transactionIndex;
+    private UnspentOutputIndex unspentOutputIndex;
+    private volatile IndexedCoinSelector coinSelector;
+    private TransactionJSONEncoder jsonEncoder;
+    private TransactionViewCache transactionViewCache;
+    private WalletAddressCache addressCache;
+    private KeyPool keyPool;
+    private UnlockedWalletSession walletSession;
+    private volatile BalanceSnapshot balanceSnapshot;
+    private WalletJournal walletJournal;
+    private boolean walletJournalingEnabled;
+    private LazyWalletFile lazyWalletFile;
+    private boolean lazyWalletLoadingEnabled;
+    private long walletLoadStartNanos;
+    private long walletLoadMillis;
+    private long firstBalanceMillis;
+    private long heapUsedAfterLoad;
+    
+    private final SendRequestTable sendRequests;
+    private volatile long legacySendId;
+    private final CoinSelector unreservedDefaultSelector;
+    private final Map<String, Metrics.Gauge> gauges;
     
     private static final Logger log = LoggerFactory.getLogger(BitcoinManager.class);
     
+    private static final LatencyHistogram getTransactionsLatency = Metrics.get().histogram("getTransactions");
+    private static final LatencyHistogram transactionJSONLatency = Metrics.get().histogram("getJSONFromTransaction");
+    private static final LatencyHistogram createSendRequestLatency = Metrics.get().histogram("createSendRequest");
+    private static final LatencyHistogram commitSendRequestLatency = Metrics.get().histogram("commitSendRequest");
+    private static final LatencyHistogram walletSaveLatency = Metrics.get().histogram("walletSave");
+    private static final LatencyHistogram keyDerivationLatency = Metrics.get().histogram("keyDerivation");
+    private static final LatencyHistogram blockLatency = Metrics.get().histogram("onBlocksDownloaded");
+    private static final Metrics.Counter blocksDownloaded = Metrics.get().counter("blocksDownloaded");
+    private static final Metrics.Counter transactionsReceived = Metrics.get().counter("transactionsReceived");
+    
     /* --- Initialization & configuration --- */
     
     public BitcoinManager()
     {
         Threading.uncaughtExceptionHandler = this;
-        trackedTransactions = new HashSet<Transaction>();
+        confidenceTracker = new TransactionConfidenceTracker(this);
+        eventDispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void transactionsChanged(String[] txids)
+            {
+                onTransactionsChanged(txids);
+            }
+            
+            public void walletChanged()
+            {
+                onHIWalletChanged();
+            }
+            
+            public void balanceChanged()
+            {
+                onBalanceChanged();
+            }
+            
+            public void synchronizationUpdate(double progress, long blockCount, long blockHeight)
+            {
+                onSynchronizationUpdate(progress, blockCount, blockHeight);
+            }
+        }, 100);
+        gauges = new LinkedHashMap<String, Metrics.Gauge>();
+        syncProgress = new SyncProgressTracker(new SyncProgressTracker.Listener() {
+            public void onSyncProgress(SyncProgressTracker.Snapshot snapshot)
+            {
+                eventDispatcher.synchronizationUpdate(snapshot.progress, snapshot.chainHeight, -1);
+            }
+        }, new SyncProgressTracker.ChainHeight() {
+            public long get()
+            {
+                return (chain != null) ? chain.getBestChainHeight() : -1;
+            }
+        });
+        transactionIndex = new TransactionIndex();
+        unspentOutputIndex = new UnspentOutputIndex();
+        coinSelector = new IndexedCoinSelector(unspentOutputIndex, IndexedCoinSelector.Strategy.FEWEST_INPUTS);
+        jsonEncoder = new TransactionJSONEncoder();
+        transactionViewCache = new TransactionViewCache();
+        addressCache = new WalletAddressCache();
+        keyPool = new KeyPool();
+        walletSession = new UnlockedWalletSession();
+        sendRequests = new SendRequestTable();
+        
+        // bitcoinj's own selector, minus the inputs of prepared send requests
+        unreservedDefaultSelector = new CoinSelector() {
+            public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates)
+            {
+                return wallet.getCoinSelector().select(target, unspentOutputIndex.withoutReserved(candidates));
+            }
+        };
         ((CocoaLogger) log).setLevel(CocoaLogger.HILoggerLevelDebug);
     }
     
@@ -132,38 +239,46 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
 	
 	public String getWalletAddress()
 	{
-		ECKey ecKey = wallet.getKeys().get(0);
-		return ecKey.toAddress(networkParams).toString();
+		return addressCache.getAddress(wallet, networkParams, keyPool.getIssuedKeyCount(), 0);
 	}
 
+    /**
+     * the addresses of the keys handed out so far; keys the key pool generated ahead of time are left out until
+     * addKey() hands them out, although the wallet already watches them
+     */
     public String getAllWalletAddressesJSON()
     {
-        StringBuffer conns = new StringBuffer();
-        conns.append("[");
-        for(ECKey key: wallet.getKeys())
-        {
-            conns.append("\"" + key.toAddress(networkParams).toString() + "\",");
-        }
-        if(conns.substring(conns.length() -1).equals(","))
-        {
-            conns.deleteCharAt(conns.length() -1);
-        }
-        conns.append("]");
-        return conns.toString();
+        return addressCache.getJSON(wallet, networkParams, keyPool.getIssuedKeyCount());
     }
 	
+	/**
+	 * returns the balance as of the last wallet change, without taking the wallet lock
+	 */
 	public BigInteger getBalance(int type)
 	{
+        BalanceSnapshot snapshot = balanceSnapshot;
+        if(snapshot == null)
+        {
+            snapshot = refreshBalance();
+        }
+        
         if(type == 0)
         {
-            return wallet.getBalance(Wallet.BalanceType.AVAILABLE);
+            return snapshot.getAvailable();
         }
         else
         {
-            return wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+            return snapshot.getEstimated();
         }
 	}
     
+    private BalanceSnapshot refreshBalance()
+    {
+        BalanceSnapshot snapshot = BalanceSnapshot.fromWallet(wallet);
+        balanceSnapshot = snapshot;
+        return snapshot;
+    }
+    
     public String getBalanceString(int type)
     {
         if (wallet != null)
@@ -172,69 +287,21 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         return null;
     }
 	
-	private String getJSONFromTransaction(Transaction tx)
+	private TransactionView getViewFromTransaction(Transaction tx)
 	{
 		if (tx != null)
 		{
-			try {
-				String confidence = "building";
-				StringBuffer conns = new StringBuffer();
-				int connCount = 0;
-				
-				if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING)
-					confidence = "pending";
-				
-				conns.append("[");
-				
-				if (tx.getInputs().size() > 0 && tx.getValue(wallet).compareTo(BigInteger.ZERO) > 0)
-				{
-					TransactionInput in = tx.getInput(0);
-					if (connCount > 0)
-	                	conns.append(", ");
-					
-					conns.append("{ ");
-					try {
-		                Script scriptSig = in.getScriptSig();
-		                if (scriptSig.getChunks().size() == 2)
-		                	conns.append("\"address\": \"" + scriptSig.getFromAddress(networkParams).toString() + "\"");
-		                
-		                conns.append(" ,\"category\": \"received\" }");
-		                
-		                connCount++;
-		            } catch (Exception e) {
-		              
-		            }
-				}
-				
-				if (tx.getOutputs().size() > 0 && tx.getValue(wallet).compareTo(BigInteger.ZERO) < 0)
-				{
-					TransactionOutput out = tx.getOutput(0);
-						
-					if (connCount > 0)
-	                	conns.append(", ");
-					
-					conns.append("{ ");
-					try {
-		                Script scriptPubKey = out.getScriptPubKey();
-		                if (scriptPubKey.isSentToAddress()) 
-		                    conns.append(" \"address\": \"" + scriptPubKey.getToAddress(networkParams).toString() + "\"");
-		                
-		                conns.append(" ,\"category\": \"sent\" }");
-		                
-		                connCount++;
-		            } catch (Exception e) {
-		              
-		            }
-				}
-				conns.append("]");
-				//else if (tx.get)
-				return "{ \"amount\": " + tx.getValue(wallet) + 
-						", \"txid\": \"" + tx.getHashAsString()  + "\"" +
-						", \"time\": \""  + tx.getUpdateTime() + "\"" + 
-						", \"confidence\": \""   +confidence + "\"" +
-						", \"details\": "   + conns.toString() +						
-						"}";
+			TransactionView view = transactionViewCache.get(tx.getHash());
+			if (view != null)
+			{
+				return view;
+			}
 			
+			try {
+				long generation = transactionViewCache.getGeneration();
+				view = TransactionView.fromTransaction(tx, wallet, networkParams);
+				transactionViewCache.put(view, generation);
+				return view;
 			} catch (ScriptException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -244,13 +311,26 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
 		return null;
 	}
 	
+	private String getJSONFromTransaction(Transaction tx)
+	{
+		long start = System.nanoTime();
+		try {
+			TransactionView view = getViewFromTransaction(tx);
+			return (view != null) ? view.toJSON() : null;
+		}
+		finally
+		{
+			transactionJSONLatency.recordSince(start);
+		}
+	}
+	
 	public int getTransactionCount()
 	{
         if(wallet == null)
         {
             return 0;
         }
-		return wallet.getTransactionsByTime().size();
+		return transactionIndex.size();
 	}
     
     public String getAllTransactions(int max)
@@ -272,12 +352,21 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
             return null;
         }
 		Sha256Hash hash = new Sha256Hash(tx);
-		return getJSONFromTransaction(wallet.getTransaction(hash));
+		Transaction transaction = wallet.getTransaction(hash);
+		if (transaction == null && lazyWalletFile != null)
+		{
+			try {
+				transaction = lazyWalletFile.getTransaction(wallet, hash);
+			} catch (IOException e) {
+				log.error("Could not read deferred transaction " + tx, e);
+			}
+		}
+		return getJSONFromTransaction(transaction);
 	}
 	
 	public String getTransaction(int idx)
 	{	
-		return getJSONFromTransaction(wallet.getTransactionsByTime().get(idx));
+		return getJSONFromTransaction(transactionIndex.get(idx));
 	}
 	
 	public String getTransactions(int from, int count)
@@ -286,136 +375,610 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         {
             return null;
         }
-		List<Transaction> transactions = wallet.getTransactionsByTime();
-		
-		if (from >= transactions.size())
+		if (from >= transactionIndex.size())
 			return null;
 		
-		int to = (from + count < transactions.size()) ? from + count : transactions.size();
-		
-		StringBuffer txs = new StringBuffer();
-		txs.append("[\n");
-		boolean first = true;
-		for (; from < to; from++)
-		{
-			if (first)
-				first = false;
-			else
-				txs.append("\n,");
+		long start = System.nanoTime();
+		try {
+			List<Transaction> transactions = transactionIndex.getRange(from, count);
+			List<TransactionView> views = new ArrayList<TransactionView>(transactions.size());
+			for (Transaction tx : transactions)
+			{
+				views.add(getViewFromTransaction(tx));
+			}
 			
-			txs.append(getJSONFromTransaction(transactions.get(from)));
+			return jsonEncoder.encodeList(views);
+		}
+		finally
+		{
+			getTransactionsLatency.recordSince(start);
 		}
-		txs.append("]\n");
-		
-		return txs.toString();
 	}
 
+    /**
+     * Same page as getTransactions(from, count), as one compact binary block instead of a JSON string
+     * (layout in PackedTransactionEncoder)
+     */
+    public byte[] getTransactionsPacked(int from, int count)
+    {
+        if(wallet == null)
+        {
+            return null;
+        }
+        if (from >= transactionIndex.size())
+            return null;
+        
+        List<Transaction> transactions = transactionIndex.getRange(from, count);
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
+        List<TransactionView> views = new ArrayList<TransactionView>(transactions.size());
+        for (Transaction tx : transactions)
+        {
+            hashes.add(tx.getHash());
+            views.add(getViewFromTransaction(tx));
+        }
+        
+        return PackedTransactionEncoder.encode(hashes, views);
+    }
+    
+    /* --- Transaction view cache --- */
+    
+    public void setTransactionCacheSize(int size)
+    {
+        transactionViewCache.setCapacity(size);
+    }
+    
+    public long getTransactionCacheHitCount()
+    {
+        return transactionViewCache.getHitCount();
+    }
+    
+    public long getTransactionCacheMissCount()
+    {
+        return transactionViewCache.getMissCount();
+    }
+
+    /**
+     * hands out the next key of the key pool (or a new one if the pool is empty) and returns its address
+     */
     public String addKey()
     {
-        boolean couldCreateKey = wallet.addKey(new ECKey());
-        if(couldCreateKey)
+        ECKey ecKey = keyPool.issueKey();
+        if(ecKey != null)
         {
-            ECKey ecKey = wallet.getKeys().get(wallet.getKeys().size()-1);
-            return ecKey.toAddress(networkParams).toString();
+            if(walletJournal != null)
+            {
+                walletJournal.appendExtension(wallet.getExtensions().get(KeyPoolExtension.EXTENSION_ID));
+            }
+            return addressCache.keyIssued(wallet, networkParams, keyPool.getIssuedKeyCount(), ecKey);
         }
         return null;
     }
+    
+    /**
+     * number of unissued keys kept ready in the wallet
+     */
+    public void setKeyPoolSize(int size)
+    {
+        keyPool.setLookahead(size);
+    }
+    
+    public int getKeyPoolSize()
+    {
+        return keyPool.getLookahead();
+    }
 
     public void clearSendRequest()
     {
-        if(pendingSendRequest != null && pendingSendRequest.aesKey != null)
+        long id = legacySendId;
+        legacySendId = 0;
+        cancelSendRequest(id);
+    }
+    
+    public String commitSendRequest()
+    {
+        SendRequestTable.PendingSend send = sendRequests.get(legacySendId);
+        if(send == null)
         {
-            wipeAesKey(pendingSendRequest.aesKey);
+            return "";
         }
-        pendingSendRequest = null;
+        
+        return commitSend(send, true);
     }
     
-    public String commitSendRequest()
+    /**
+     * creates and stores a sendRequest and return the required fee
+     */
+    public String createSendRequest(String amount, final String sendToAddressString) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
+	{
+        return createSendRequest(amount, sendToAddressString, null);
+    }
+	public String createSendRequest(String amount, final String sendToAddressString, char[] utf16Password) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
+	{
+        
+        log.debug("creating send request " + amount);
+        
+        clearSendRequest();
+        
+        try {
+            return completeSendRequest(singleSendRequest(amount, sendToAddressString), utf16Password);
+        }
+        catch (AddressFormatException e)
+        {
+            onTransactionFailed();
+        }
+        catch (NumberFormatException e)
+        {
+            onTransactionFailed();
+        }
+        return null;
+	}
+
+    public String createBatchSendRequest(String[] amounts, String[] sendToAddressStrings) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
+    {
+        return createBatchSendRequest(amounts, sendToAddressStrings, null);
+    }
+
+    /**
+     * Prepares a single transaction paying amounts[i] to sendToAddressStrings[i] for every i, with one change
+     * output and one fee for the whole batch. Returns the fee; the transaction is broadcast with commitSendRequest
+     * like a single payment. Unlike createSendRequest, an invalid amount or address is reported as an exception
+     * naming the recipient, since one bad entry in a long list is otherwise hard to find.
+     */
+    public String createBatchSendRequest(String[] amounts, String[] sendToAddressStrings, char[] utf16Password) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
+    {
+        Wallet.SendRequest request = batchSendRequest(amounts, sendToAddressStrings);
+
+        clearSendRequest();
+
+        return completeSendRequest(request, utf16Password);
+    }
+
+    /**
+     * Completes the request as the one commitSendRequest() broadcasts. Returns the fee, or null if the transaction
+     * could not be completed.
+     */
+    private String completeSendRequest(Wallet.SendRequest request, char[] utf16Password) throws WrongPasswordException, InsufficientMoneyException
     {
-        if(pendingSendRequest == null)
+        try {
+            SendRequestTable.PendingSend send = prepareSend(request, utf16Password);
+            legacySendId = send.getId();
+            return send.getFee();
+        }
+        catch (InsufficientMoneyException e)
+        {
+            throw e;
+        }
+        catch (WrongPasswordException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            onTransactionFailed();
+        }
+        return null;
+    }
+    
+    /* --- Send requests by id --- */
+    
+    /**
+     * Prepares a send without replacing the one of createSendRequest, any number of them can be prepared and
+     * committed concurrently. Returns the request id for getSendRequestFee, commitSendRequest(id) and
+     * cancelSendRequest. Throws IllegalStateException if too many requests are being prepared or committed;
+     * broadcast requests don't count.
+     */
+    public long prepareSendRequest(String amount, String sendToAddressString, char[] utf16Password) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
+    {
+        return prepareSend(singleSendRequest(amount, sendToAddressString), utf16Password).getId();
+    }
+    
+    public long prepareBatchSendRequest(String[] amounts, String[] sendToAddressStrings, char[] utf16Password) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
+    {
+        return prepareSend(batchSendRequest(amounts, sendToAddressStrings), utf16Password).getId();
+    }
+    
+    /** The fee of a prepared request, or null if the id is unknown. */
+    public String getSendRequestFee(long requestId)
+    {
+        SendRequestTable.PendingSend send = sendRequests.get(requestId);
+        return (send != null) ? send.getFee() : null;
+    }
+    
+    /** CREATED, COMMITTED, BROADCAST, CONFIRMED or FAILED, or null if the id is unknown or long finished. */
+    public String getSendRequestState(long requestId)
+    {
+        SendRequestTable.PendingSend send = sendRequests.get(requestId);
+        return (send != null) ? send.getState().name() : null;
+    }
+    
+    /**
+     * Commits and broadcasts a prepared request, reporting the result through onSendRequestSuccess or
+     * onSendRequestFailed. Returns the transaction hash, or an empty string if the request can't be committed.
+     */
+    public String commitSendRequest(long requestId)
+    {
+        SendRequestTable.PendingSend send = sendRequests.get(requestId);
+        if (send == null)
         {
             return "";
         }
         
+        return commitSend(send, false);
+    }
+    
+    /** Drops a prepared request that was not committed and frees its inputs. */
+    public void cancelSendRequest(long requestId)
+    {
+        SendRequestTable.PendingSend send = sendRequests.get(requestId);
+        if (send != null && sendRequests.transition(send, SendRequestTable.State.CREATED, SendRequestTable.State.FAILED))
+        {
+            unspentOutputIndex.release(send.getReservedOutputs());
+        }
+    }
+    
+    /**
+     * transaction, wallet, balance and sync callbacks are collected for this long and delivered merged, 0 delivers
+     * them right away (still from the dispatcher thread)
+     */
+    public void setEventCoalescingWindow(long millis)
+    {
+        eventDispatcher.setWindowMillis(millis);
+    }
+    
+    public String getEventDispatchStatsJSON()
+    {
+        return eventDispatcher.getStatsJSON();
+    }
+    
+    /**
+     * progress of the current or last block chain download: progress, blocks done and left, chain height,
+     * blocks/bytes/filtered transactions per second over the sampling window, etaSeconds and elapsedSeconds
+     */
+    public String getSyncProgressJSON()
+    {
+        return syncProgress.getSnapshot().toJSON();
+    }
+    
+    /** how often sync progress is sampled and reported, and over how many samples the rates are averaged */
+    public void setSyncProgressSampling(long intervalMillis, int windowSamples)
+    {
+        syncProgress.setSampling(intervalMillis, windowSamples);
+    }
+    
+    /**
+     * counters, gauges and latency histograms of the bridge as JSON, the same registry is published through JMX
+     * as com.hive.bitcoinkit:type=Metrics
+     */
+    public String getMetricsJSON()
+    {
+        return Metrics.get().toJSON();
+    }
+    
+    /**
+     * the gauges read this manager, so they are registered when a wallet is put to use and removed again in stop();
+     * a manager started later takes them over while it runs
+     */
+    private void registerMetrics()
+    {
+        Metrics metrics = Metrics.get();
+        gauge("peers", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return (peerGroup != null) ? peerGroup.numConnectedPeers() : 0;
+            }
+        });
+        gauge("chainHeight", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return (chain != null) ? chain.getBestChainHeight() : -1;
+            }
+        });
+        gauge("transactions", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return transactionIndex.size();
+            }
+        });
+        gauge("unspentOutputs", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return unspentOutputIndex.size();
+            }
+        });
+        gauge("trackedTransactions", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return confidenceTracker.size();
+            }
+        });
+        gauge("sendRequestsInFlight", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return sendRequests.getInFlightCount();
+            }
+        });
+        gauge("heapUsedBytes", new Metrics.Gauge() {
+            public long getValue()
+            {
+                Runtime runtime = Runtime.getRuntime();
+                return runtime.totalMemory() - runtime.freeMemory();
+            }
+        });
+        
         try {
-            wallet.commitTx(pendingSendRequest.tx);
+            metrics.registerWithJMX();
+        }
+        catch (Exception e)
+        {
+            log.warn("Could not publish the metrics through JMX: " + e);
+        }
+    }
+    
+    private void gauge(String name, Metrics.Gauge gauge)
+    {
+        Metrics.get().gauge(name, gauge);
+        gauges.put(name, gauge);
+    }
+    
+    private void unregisterMetrics()
+    {
+        for (Map.Entry<String, Metrics.Gauge> entry : gauges.entrySet())
+        {
+            Metrics.get().removeGauge(entry.getKey(), entry.getValue());
+        }
+        gauges.clear();
+    }
+    
+    public void setMaxSendRequestsInFlight(int max)
+    {
+        sendRequests.setMaxInFlight(max);
+    }
+    
+    public int getSendRequestsInFlightCount()
+    {
+        return sendRequests.getInFlightCount();
+    }
+    
+    /**
+     * A prepared request that isn't committed or cancelled within this time is dropped and its inputs are freed
+     * when the next request is prepared; 10 minutes by default, 0 to keep them until stop().
+     */
+    public void setSendRequestExpiry(long millis)
+    {
+        sendRequests.setExpiryMillis(millis);
+    }
+    
+    private Wallet.SendRequest singleSendRequest(String amount, String sendToAddressString) throws AddressFormatException
+    {
+        BigInteger value = new BigInteger(amount);
+        Address sendToAddress = new Address(networkParams, sendToAddressString);
+        
+        return Wallet.SendRequest.to(sendToAddress, value);
+    }
+    
+    private Wallet.SendRequest batchSendRequest(String[] amounts, String[] sendToAddressStrings) throws AddressFormatException
+    {
+        if (amounts.length != sendToAddressStrings.length)
+        {
+            throw new IllegalArgumentException(amounts.length + " amounts for " + sendToAddressStrings.length + " addresses");
+        }
+        if (amounts.length == 0)
+        {
+            throw new IllegalArgumentException("No recipients");
+        }
+
+        log.debug("creating batch send request with " + amounts.length + " outputs");
+
+        Transaction tx = new Transaction(networkParams);
+        for (int i = 0; i < amounts.length; i++)
+        {
+            BigInteger value;
+            try
+            {
+                value = new BigInteger(amounts[i]);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid amount for recipient " + i + ": " + amounts[i]);
+            }
+            if (value.signum() <= 0)
+            {
+                throw new IllegalArgumentException("Invalid amount for recipient " + i + ": " + amounts[i]);
+            }
+
+            Address sendToAddress;
+            try
+            {
+                sendToAddress = new Address(networkParams, sendToAddressStrings[i]);
+            }
+            catch (AddressFormatException e)
+            {
+                throw new AddressFormatException("Invalid address for recipient " + i + ": " + sendToAddressStrings[i]);
+            }
+
+            tx.addOutput(value, sendToAddress);
+        }
+
+        return Wallet.SendRequest.forTx(tx);
+    }
+    
+    /**
+     * Adds inputs, change and fee, signs the transaction and registers it as a new request. Its inputs stay
+     * reserved until it is committed or cancelled, so that other requests prepared in the meantime don't pick them.
+     */
+    private SendRequestTable.PendingSend prepareSend(Wallet.SendRequest request, char[] utf16Password) throws WrongPasswordException, InsufficientMoneyException
+    {
+        long start = System.nanoTime();
+        KeyParameter aesKey = null;
+        try {
+            if (wallet != null && wallet.isEncrypted())
+            {
+                // without a password, use the key of an unlocked session (a copy, this request owns it)
+                aesKey = (utf16Password != null) ? aesKeyForPassword(utf16Password) : walletSession.copyKey();
+                request.aesKey = aesKey;
+            }
+            
+            IndexedCoinSelector selector = coinSelector;
+            request.coinSelector = (selector != null) ? selector : unreservedDefaultSelector;
+            
+            // selecting and reserving the inputs must not interleave with another request doing the same
+            synchronized (sendRequests)
+            {
+                for (SendRequestTable.PendingSend expired : sendRequests.expire())
+                {
+                    unspentOutputIndex.release(expired.getReservedOutputs());
+                }
+                
+                wallet.completeTx(request);
+                
+                List<TransactionOutput> inputs = new ArrayList<TransactionOutput>();
+                for (TransactionInput input : request.tx.getInputs())
+                {
+                    inputs.add(input.getConnectedOutput());
+                }
+                
+                SendRequestTable.PendingSend send = sendRequests.add(request, inputs);
+                unspentOutputIndex.reserve(inputs);
+                return send;
+            }
+        }
+        catch (KeyCrypterException e)
+        {
+            throw new WrongPasswordException(e);
+        }
+        finally
+        {
+            // completeTx has signed the transaction, the key is not needed any more
+            request.aesKey = null;
+            wipeAesKey(aesKey);
+            createSendRequestLatency.recordSince(start);
+        }
+    }
+    
+    private String commitSend(SendRequestTable.PendingSend send, boolean legacyCallbacks)
+    {
+        long start = System.nanoTime();
+        try {
+            return commitAndBroadcast(send, legacyCallbacks);
+        }
+        finally
+        {
+            commitSendRequestLatency.recordSince(start);
+        }
+    }
+    
+    private String commitAndBroadcast(final SendRequestTable.PendingSend send, final boolean legacyCallbacks)
+    {
+        if (!sendRequests.transition(send, SendRequestTable.State.CREATED, SendRequestTable.State.COMMITTED))
+        {
+            return "";
+        }
+        
+        final Transaction tx = send.getTransaction();
+        try {
+            try {
+                wallet.commitTx(tx);
+            }
+            finally
+            {
+                // from here on the wallet itself knows the inputs are spent
+                unspentOutputIndex.release(send.getReservedOutputs());
+            }
+            
             ListenableFuture<Transaction> future;
             if(broadcastMinTransactions < 0)
             {
-                future = peerGroup.broadcastTransaction(pendingSendRequest.tx);
+                future = peerGroup.broadcastTransaction(tx);
             }
             else
             {
-                future = peerGroup.broadcastTransaction(pendingSendRequest.tx, broadcastMinTransactions);
+                future = peerGroup.broadcastTransaction(tx, broadcastMinTransactions);
             }
             
             Futures.addCallback(future, new FutureCallback<Transaction>() {
                 public void onSuccess(Transaction transaction) {
-                    onTransactionSuccess(pendingSendRequest.tx.getHashAsString());
-                    wipeAesKey(pendingSendRequest.aesKey);
+                    sendRequests.transition(send, SendRequestTable.State.COMMITTED, SendRequestTable.State.BROADCAST);
+                    if (legacyCallbacks)
+                    {
+                        onTransactionSuccess(tx.getHashAsString());
+                    }
+                    else
+                    {
+                        onSendRequestSuccess(send.getId(), tx.getHashAsString());
+                    }
                 }
                 
                 public void onFailure(Throwable throwable) {
-                    onTransactionFailed();
-                    wipeAesKey(pendingSendRequest.aesKey);
+                    sendRequests.transition(send, SendRequestTable.State.COMMITTED, SendRequestTable.State.FAILED);
+                    if (legacyCallbacks)
+                    {
+                        onTransactionFailed();
+                    }
+                    else
+                    {
+                        onSendRequestFailed(send.getId());
+                    }
                 }
             });
             
-            return pendingSendRequest.tx.getHashAsString();
+            return tx.getHashAsString();
             
         } catch (Exception e) {
+            sendRequests.transition(send, SendRequestTable.State.COMMITTED, SendRequestTable.State.FAILED);
             return "";
         }
         
     }
     
-    /**
-     * creates and stores a sendRequest and return the required fee
-     */
-    public String createSendRequest(String amount, final String sendToAddressString) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
-	{
-        return createSendRequest(amount, sendToAddressString, null);
-    }
-	public String createSendRequest(String amount, final String sendToAddressString, char[] utf16Password) throws AddressFormatException, WrongPasswordException, InsufficientMoneyException
-	{
-        
-        log.debug("creating send request " + amount);
-        
-        clearSendRequest();
+    /** Moves a committed request on when its transaction makes it into a block or gets double spent. */
+    private void updateSendRequest(Transaction tx)
+    {
+        SendRequestTable.PendingSend send = sendRequests.getByTransaction(tx.getHash());
+        if (send == null)
+        {
+            return;
+        }
         
-        KeyParameter aesKey = null;
-        try {
-            BigInteger value = new BigInteger(amount);
-            Address sendToAddress = new Address(networkParams, sendToAddressString);
-
-            pendingSendRequest = Wallet.SendRequest.to(sendToAddress, value);
-            
-            if (utf16Password != null && wallet != null && wallet.isEncrypted())
-            {
-                aesKey = aesKeyForPassword(utf16Password);
-                pendingSendRequest.aesKey = aesKey;
-            }
-
-            wallet.completeTx(pendingSendRequest);
-            return pendingSendRequest.fee.toString();
-            
+        SendRequestTable.State state;
+        switch (tx.getConfidence().getConfidenceType())
+        {
+            case BUILDING:
+                state = SendRequestTable.State.CONFIRMED;
+                break;
+            case DEAD:
+                state = SendRequestTable.State.FAILED;
+                break;
+            default:
+                return;
         }
-        catch (InsufficientMoneyException e)
+        
+        if (!sendRequests.transition(send, SendRequestTable.State.BROADCAST, state))
         {
-            throw e;
+            sendRequests.transition(send, SendRequestTable.State.COMMITTED, state);
         }
-        catch (KeyCrypterException e)
+    }
+    
+    /**
+     * Sets how the inputs of new send requests are picked: FEWEST_INPUTS, OLDEST_FIRST or CLOSEST_MATCH from the
+     * unspent output index, or DEFAULT for bitcoinj's own selector.
+     */
+    public void setCoinSelectionStrategy(String strategy)
+    {
+        if ("DEFAULT".equals(strategy))
         {
-            wipeAesKey(aesKey);
-            throw new WrongPasswordException(e);
+            coinSelector = null;
         }
-        catch (Exception e)
+        else
         {
-            wipeAesKey(aesKey);
-            onTransactionFailed();
+            coinSelector = new IndexedCoinSelector(unspentOutputIndex, IndexedCoinSelector.Strategy.valueOf(strategy));
         }
-        return null;
-	}
+    }
+    
+    public String getCoinSelectionStrategy()
+    {
+        IndexedCoinSelector selector = coinSelector;
+        return (selector != null) ? selector.getStrategy().name() : "DEFAULT";
+    }
     
     public boolean isAddressValid(String address)
     {
@@ -442,7 +1005,14 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         String base64Wallet = null;
         try {
-            wallet.saveToFileStream(stream);
+            if (lazyWalletFile != null)
+            {
+                lazyWalletFile.writeTo(wallet, stream);
+            }
+            else
+            {
+                wallet.saveToFileStream(stream);
+            }
             base64Wallet = new String(Base64.encode(stream.toByteArray()), Charset.forName("UTF-8"));
         } catch (IOException e) {
             //TODO
@@ -493,109 +1063,235 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         KeyParameter aesKey = deriveKeyAndWipePassword(utf16Password, keyCrypter);
         try
         {
-            wallet.encrypt(keyCrypter, aesKey);
+            wallet.encrypt(keyCrypter, aesKey);
+        }
+        finally
+        {
+            wipeAesKey(aesKey);
+        }
+    }
+    
+    private KeyParameter aesKeyForPassword(char[] utf16Password) throws WrongPasswordException
+    {
+        KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        if (keyCrypter == null)
+        {
+            throw new WrongPasswordException("Wallet is not protected.");
+        }
+        return deriveKeyAndWipePassword(utf16Password, keyCrypter);
+    }
+    
+    private KeyParameter deriveKeyAndWipePassword(char[] utf16Password, KeyCrypter keyCrypter)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            return keyCrypter.deriveKey(CharBuffer.wrap(utf16Password));
+        }
+        finally
+        {
+            Arrays.fill(utf16Password, '\0');
+            keyDerivationLatency.recordSince(start);
+        }
+    }
+    
+    private void wipeAesKey(KeyParameter aesKey)
+    {
+        if (aesKey != null)
+        {
+            Arrays.fill(aesKey.getKey(), (byte) 0);
+        }
+    }
+    
+    /**
+     * derive the AES key once and keep it until lockWallet() or until it wasn't used for idleTimeoutSeconds;
+     * createSendRequest without a password uses it in the meantime
+     */
+    public void unlockWallet(char[] utf16Password, long idleTimeoutSeconds) throws WrongPasswordException
+    {
+        KeyParameter aesKey = aesKeyForPassword(utf16Password);
+        if (!wallet.checkAESKey(aesKey))
+        {
+            wipeAesKey(aesKey);
+            throw new WrongPasswordException("Wrong password.");
+        }
+        
+        walletSession.unlock(aesKey, idleTimeoutSeconds, TimeUnit.SECONDS);
+    }
+    
+    public void lockWallet()
+    {
+        walletSession.lock();
+    }
+    
+    public boolean isWalletUnlocked()
+    {
+        return walletSession.isUnlocked();
+    }
+    
+    public long getWalletUnlockRemainingSeconds()
+    {
+        return walletSession.getRemainingMillis() / 1000;
+    }
+    
+    /**
+     * re-encrypts all keys with the new password on all cores, then swaps them in at once (see RekeyableWallet);
+     * the wallet is never unencrypted in between and stays usable meanwhile
+     */
+    public void changeWalletPassword(char[] oldUtf16Password, char[] newUtf16Password) throws WrongPasswordException
+    {
+        // the session key belongs to the old password
+        lockWallet();
+        
+        KeyParameter oldAesKey = null;
+        KeyParameter newAesKey = null;
+        try
+        {
+            if (isWalletEncrypted())
+            {
+                oldAesKey = aesKeyForPassword(oldUtf16Password);
+                if (!wallet.checkAESKey(oldAesKey))
+                {
+                    throw new WrongPasswordException("Wrong password.");
+                }
+            }
+            else if (oldUtf16Password != null)
+            {
+                Arrays.fill(oldUtf16Password, '\0');
+            }
+            
+            KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt();
+            newAesKey = deriveKeyAndWipePassword(newUtf16Password, keyCrypter);
+            
+            updateLastWalletChange(wallet);
+            
+            try
+            {
+                ((RekeyableWallet) wallet).reencrypt(oldAesKey, keyCrypter, newAesKey);
+            }
+            catch (KeyCrypterException e)
+            {
+                throw new WrongPasswordException(e);
+            }
+            
+            // the pooled keys were replaced by their encrypted versions
+            keyPool.attach(wallet, (KeyPoolExtension) wallet.getExtensions().get(KeyPoolExtension.EXTENSION_ID));
+            
+            // every key changed, a snapshot is smaller than journaling them all
+            saveWallet();
+        }
+        finally
+        {
+            wipeAesKey(oldAesKey);
+            wipeAesKey(newAesKey);
+        }
+    }
+    
+    /**
+     * decrypt your wallet
+     */
+    public String getWalletDump(String passphrase)
+    {
+        try
+        {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(wallet.getKeychainSize() * 256);
+            writeWalletDump(stream, passphrase);
+            
+            byte[] dump = stream.toByteArray();
+            try
+            {
+                return new String(dump, Charset.forName("UTF-8"));
+            }
+            finally
+            {
+                Arrays.fill(dump, (byte) 0);
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * write the (decrypted) keys to a file that only the current user can read, without building the whole
+     * dump in memory
+     */
+    public void writeWalletDump(String path, String passphrase) throws IOException, WrongPasswordException
+    {
+        OutputStream stream = openPrivateFile(path);
+        try
+        {
+            writeWalletDump(stream, passphrase);
         }
         finally
         {
-            wipeAesKey(aesKey);
+            stream.close();
         }
     }
     
-    private KeyParameter aesKeyForPassword(char[] utf16Password) throws WrongPasswordException
+    private void writeWalletDump(OutputStream stream, String passphrase) throws IOException, WrongPasswordException
     {
-        KeyCrypter keyCrypter = wallet.getKeyCrypter();
-        if (keyCrypter == null)
+        KeyParameter aesKey = null;
+        if (wallet.isEncrypted() && passphrase != null)
         {
-            throw new WrongPasswordException("Wallet is not protected.");
+            // one scrypt derivation for all keys
+            long start = System.nanoTime();
+            aesKey = wallet.getKeyCrypter().deriveKey(passphrase);
+            keyDerivationLatency.recordSince(start);
         }
-        return deriveKeyAndWipePassword(utf16Password, keyCrypter);
-    }
-    
-    private KeyParameter deriveKeyAndWipePassword(char[] utf16Password, KeyCrypter keyCrypter)
-    {
+        
         try
         {
-            return keyCrypter.deriveKey(CharBuffer.wrap(utf16Password));
+            writeWalletDump(stream, aesKey);
         }
         finally
         {
-            Arrays.fill(utf16Password, '\0');
+            wipeAesKey(aesKey);
         }
     }
     
-    private void wipeAesKey(KeyParameter aesKey)
+    private void writeWalletDump(OutputStream stream, KeyParameter aesKey) throws IOException, WrongPasswordException
     {
-        if (aesKey != null)
+        if (aesKey != null && !wallet.checkAESKey(aesKey))
         {
-            Arrays.fill(aesKey.getKey(), (byte) 0);
+            throw new WrongPasswordException("Wrong password.");
         }
-    }
-    
-    /**
-     * decrypt your wallet
-     */
-    private void decryptWallet(char[] oldUtf16Password) throws WrongPasswordException
-    {
-        KeyParameter oldAesKey = aesKeyForPassword(oldUtf16Password);
+        
         try
         {
-            wallet.decrypt(oldAesKey);
+            WalletDumpWriter.write(wallet, aesKey, stream);
         }
         catch (KeyCrypterException e)
         {
             throw new WrongPasswordException(e);
         }
-        finally
-        {
-            wipeAesKey(oldAesKey);
-        }
-    }
-    
-    public void changeWalletPassword(char[] oldUtf16Password, char[] newUtf16Password) throws WrongPasswordException
-    {
-        updateLastWalletChange(wallet);
-        
-        if (isWalletEncrypted())
-        {
-            decryptWallet(oldUtf16Password);
-        }
-        
-        encryptWallet(newUtf16Password, wallet);
     }
     
     /**
-     * decrypt your wallet
+     * creates the file empty, restricts it to the current user and only then opens it, so that nobody else can
+     * open it while the keys are written; an existing file is replaced
      */
-    public String getWalletDump(String passphrase)
+    private OutputStream openPrivateFile(String path) throws IOException
     {
-        try
+        File file = new File(path);
+        if (file.exists() && !file.delete())
         {
-            StringBuilder walletDump = new StringBuilder(2048);
-            List<ECKey> keys = wallet.getKeys();// toStringWithPrivate()
-            for(ECKey key: keys)
-            {
-                ECKey keyToPlayWith = key;
-                
-                if(wallet.isEncrypted() && passphrase != null)
-                {
-                    org.spongycastle.crypto.params.KeyParameter keyParams = wallet.getKeyCrypter().deriveKey(passphrase);
-                    
-                    ECKey decryptedKey = key.decrypt(wallet.getKeyCrypter(),keyParams);
-                    if(decryptedKey != null)
-                    {
-                        keyToPlayWith = decryptedKey;
-                    }
-                }
-                
-                walletDump.append(keyToPlayWith.toStringWithPrivate()+"\n");
-            }
-            
-            return walletDump.toString();
+            throw new IOException("Could not replace " + path);
         }
-        catch (Exception e)
+        if (!file.createNewFile())
         {
-            return null;
+            throw new IOException(path + " was created by someone else");
+        }
+        
+        boolean restricted = file.setReadable(false, false) && file.setWritable(false, false)
+            && file.setReadable(true, true) && file.setWritable(true, true);
+        if (!restricted)
+        {
+            file.delete();
+            throw new IOException("Could not restrict the permissions of " + path);
         }
+        return new FileOutputStream(file);
     }
     
     /**
@@ -607,7 +1303,14 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         {
             try
             {
-                wallet.saveToFile(walletFile);
+                if(walletJournal != null)
+                {
+                    walletJournal.compact();
+                }
+                else
+                {
+                    saveWalletFile(wallet, walletFile);
+                }
             }
             catch (Exception e)
             {
@@ -627,11 +1330,16 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
             throw new ExistingWalletException("Trying to create a wallet even though one exists: " + walletFile);
         }
         
-        wallet = new Wallet(networkParams);
-        wallet.addExtension(new LastWalletChangeExtension());
+        wallet = new RekeyableWallet(networkParams);
+        lazyWalletFile = null;
+        addWalletExtensions(wallet);
         updateLastWalletChange(wallet);
         wallet.addKey(new ECKey());
         
+        KeyPoolExtension keyPoolExtension =
+        (KeyPoolExtension) wallet.getExtensions().get(KeyPoolExtension.EXTENSION_ID);
+        keyPoolExtension.setIssuedKeyCount(1);
+        
         if (utf16Password != null)
         {
             encryptWallet(utf16Password, wallet);
@@ -645,9 +1353,52 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
     private void useWallet(Wallet wallet) throws IOException
     {
         this.wallet = wallet;
+        walletSession.lock();
+        refreshBalance();
+        registerMetrics();
+        
+        if (walletLoadStartNanos != 0)
+        {
+            firstBalanceMillis = (System.nanoTime() - walletLoadStartNanos) / 1000000;
+            walletLoadStartNanos = 0;
+        }
+        
+        if (walletJournalingEnabled)
+        {
+            // append changes to the journal instead of rewriting the whole file
+            walletJournal = new WalletJournal(walletFile);
+            walletJournal.setLazyWalletFile(lazyWalletFile);
+            walletJournal.start(wallet, (WalletJournalExtension) wallet.getExtensions().get(WalletJournalExtension.EXTENSION_ID));
+        }
+        else if (lazyWalletFile != null)
+        {
+            // Wallet.autosaveToFile would drop the transactions that were not read yet
+            lazyWalletFile.startAutosave(wallet, walletFile);
+        }
+        else
+        {
+            //make wallet autosave
+            wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, autosaveTimer);
+        }
+        
+        // index the history once, the listener below keeps it up to date
+        transactionIndex.setLazyWalletFile(lazyWalletFile);
+        transactionIndex.rebuild(wallet);
+        transactionViewCache.clear();
+        unspentOutputIndex.rebuild(wallet);
+        
+        // addKey() hands out keys generated ahead of time
+        keyPool.attach(wallet, (KeyPoolExtension) wallet.getExtensions().get(KeyPoolExtension.EXTENSION_ID));
+        
+        // derive all addresses up front, addKey() appends to the list
+        addressCache.clear();
+        if (networkParams != null)
+        {
+            addressCache.getJSON(wallet, networkParams, keyPool.getIssuedKeyCount());
+        }
         
-        //make wallet autosave
-        wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, null);
+        // pending transactions are not announced again after a restart
+        confidenceTracker.attach(wallet);
         
         // We want to know when the balance changes.
         wallet.addEventListener(new AbstractWalletEventListener() {
@@ -655,26 +1406,232 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
             public void onCoinsReceived(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
                 assert !newBalance.equals(BigInteger.ZERO);
                 
+                transactionIndex.update(tx);
+                transactionViewCache.invalidateWithSpenders(tx);
+                unspentOutputIndex.update(tx);
+                journalTransaction(tx);
+                
                 // TODO: check if the isPending thing is required
                 if (!tx.isPending()) return;
                 
+                confidenceTracker.track(tx);
                 onHICoinsReceived(tx.getHashAsString());
             }
             
+            @Override
+            public void onCoinsSent(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                transactionIndex.update(tx);
+                transactionViewCache.invalidateWithSpenders(tx);
+                unspentOutputIndex.update(tx);
+                journalTransaction(tx);
+                confidenceTracker.track(tx);
+            }
+            
+            @Override
+            public void onReorganize(Wallet wallet) {
+                transactionIndex.rebuild(wallet);
+                transactionViewCache.clear();
+                unspentOutputIndex.rebuild(wallet);
+                
+                // a reorg touches too many transactions to journal them one by one
+                if (walletJournal != null)
+                {
+                    walletJournal.requestCompaction();
+                }
+            }
+            
+            @Override
+            public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
+                if (walletJournal != null)
+                {
+                    walletJournal.appendKeys(keys);
+                }
+                if (peerGroup != null)
+                {
+                    syncProgress.setFastCatchupTime(peerGroup.getFastCatchupTimeSecs());
+                }
+            }
+            
             @Override
             public void onWalletChanged(Wallet wallet) {
-                onHIWalletChanged();
+                // recompute here, on the wallet's event thread, so the UI never waits for the wallet lock
+                refreshBalance();
+                eventDispatcher.walletChanged();
             }
             
             @Override
             public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx)
             {
-                onTransactionChanged(tx.getHashAsString());
+                transactionIndex.update(tx);
+                transactionViewCache.invalidateIfChanged(tx);
+                unspentOutputIndex.update(tx);
+                updateSendRequest(tx);
+                if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD)
+                {
+                    // bitcoinj moves the parents back to UNSPENT without an event of their own
+                    journalTransaction(tx);
+                }
+                else if (walletJournal != null)
+                {
+                    walletJournal.appendTransaction(tx);
+                }
+                eventDispatcher.transactionChanged(tx.getHashAsString());
             }
             
         });
     }
     
+    private void journalTransaction(Transaction tx)
+    {
+        if (walletJournal != null)
+        {
+            walletJournal.appendTransactionWithParents(tx);
+        }
+    }
+    
+    
+    /* --- Wallet journal --- */
+    
+    /**
+     * journal wallet changes instead of rewriting the wallet file on every change (see WalletJournal);
+     * takes effect for the next wallet that is loaded or created
+     */
+    public void setWalletJournalingEnabled(boolean enabled)
+    {
+        walletJournalingEnabled = enabled;
+    }
+    
+    public boolean isWalletJournalingEnabled()
+    {
+        return walletJournalingEnabled;
+    }
+    
+    public String getWalletJournalStatsJSON()
+    {
+        if (walletJournal == null)
+        {
+            return null;
+        }
+        return walletJournal.getStatsJSON();
+    }
+    
+    
+    /* --- Lazy wallet loading --- */
+    
+    /**
+     * memory-map the wallet file and read old, fully spent transactions only when they are requested
+     * (see LazyWalletFile); takes effect for the next wallet that is loaded
+     */
+    public void setLazyWalletLoadingEnabled(boolean enabled)
+    {
+        lazyWalletLoadingEnabled = enabled;
+    }
+    
+    public boolean isLazyWalletLoadingEnabled()
+    {
+        return lazyWalletLoadingEnabled;
+    }
+    
+    /**
+     * time to read the wallet, time until the first balance was available, and the heap in use right after
+     * loading (not garbage collected, so an upper bound; WalletFileBenchmark measures it after a collection)
+     */
+    public String getWalletLoadStatsJSON()
+    {
+        return "{ \"loadMillis\": " + walletLoadMillis
+            + ", \"firstBalanceMillis\": " + firstBalanceMillis
+            + ", \"heapUsedAfterLoad\": " + heapUsedAfterLoad
+            + ", \"lazy\": " + ((lazyWalletFile != null) ? lazyWalletFile.getStatsJSON() : "null")
+            + " }";
+    }
+    
+    private void saveWalletFile(Wallet wallet, File file) throws IOException
+    {
+        if (lazyWalletFile != null)
+        {
+            lazyWalletFile.save(wallet, file);
+        }
+        else
+        {
+            long start = System.nanoTime();
+            wallet.saveToFile(file);
+            walletSaveLatency.recordSince(start);
+        }
+    }
+    
+    
+    /**
+     * loads a wallet file with our extensions registered up front, so that their saved state is read back
+     */
+    private Wallet readWalletFile(File file) throws IOException, UnreadableWalletException
+    {
+        Protos.Wallet walletProto;
+        NetworkParameters params;
+        lazyWalletFile = null;
+        
+        if (lazyWalletLoadingEnabled)
+        {
+            lazyWalletFile = LazyWalletFile.open(file);
+            walletProto = lazyWalletFile.getEagerProto();
+            lazyWalletFile.releaseEagerProto();
+            params = lazyWalletFile.getParams();
+        }
+        else
+        {
+            FileInputStream stream = new FileInputStream(file);
+            try
+            {
+                walletProto = WalletProtobufSerializer.parseToProto(new BufferedInputStream(stream));
+            }
+            finally
+            {
+                stream.close();
+            }
+            
+            params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+            if (params == null)
+            {
+                throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+            }
+        }
+        
+        // replay what was journaled after the snapshot was written
+        WalletJournal.Recovery recovery = null;
+        if (WalletJournal.exists(file))
+        {
+            recovery = WalletJournal.recover(file, WalletJournalExtension.readSnapshotSequence(walletProto), params);
+            walletProto = recovery.applyTo(walletProto);
+            if (lazyWalletFile != null)
+            {
+                lazyWalletFile.discard(recovery.getTransactionHashes());
+            }
+        }
+        
+        Wallet loadedWallet = new RekeyableWallet(params);
+        addWalletExtensions(loadedWallet);
+        new WalletProtobufSerializer().readWallet(walletProto, loadedWallet);
+        
+        if (recovery != null)
+        {
+            recovery.applyTo(loadedWallet);
+            
+            if (!walletJournalingEnabled)
+            {
+                // fold the journal into the wallet file, nobody would replay it again
+                saveWalletFile(loadedWallet, file);
+                WalletJournal.deleteFiles(file);
+            }
+        }
+        return loadedWallet;
+    }
+    
+    private void addWalletExtensions(Wallet wallet)
+    {
+        wallet.addExtension(new LastWalletChangeExtension());
+        wallet.addExtension(new KeyPoolExtension());
+        wallet.addExtension(new WalletJournalExtension());
+    }
+    
     
     /* --- Keeping last wallet change date --- */
     
@@ -684,6 +1641,11 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         (LastWalletChangeExtension) wallet.getExtensions().get(LastWalletChangeExtension.EXTENSION_ID);
         
         ext.setLastWalletChangeDate(new Date());
+        
+        if (walletJournal != null && wallet == this.wallet)
+        {
+            walletJournal.appendExtension(ext);
+        }
     }
     
     public Date getLastWalletChange()
@@ -721,9 +1683,11 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
                 }
                 if (walletFile.exists())
                 {
-                    wallet = Wallet.loadFromFile(walletFile);
-                    wallet.addExtension(new LastWalletChangeExtension());
+                    walletLoadStartNanos = System.nanoTime();
+                    wallet = readWalletFile(walletFile);
+                    walletLoadMillis = (System.nanoTime() - walletLoadStartNanos) / 1000000;
                     useWallet(wallet);
+                    heapUsedAfterLoad = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
                 }
                 else {
                     throw new NoWalletException("No wallet file found at: " + walletFile);
@@ -748,36 +1712,40 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         if(!chainFile.exists())
         {
             wallet.clearTransactions(0);
-        }
-
-        // get the oldest key (for the checkpoint file)
-        long oldestKey = 0;
-        for(ECKey key: wallet.getKeys())
-        {
-            long keyAge = key.getCreationTimeSeconds();
-            if(oldestKey == 0 || keyAge < oldestKey)
+            if (lazyWalletFile != null)
+            {
+                lazyWalletFile.clear();
+            }
+            transactionIndex.rebuild(wallet);
+            transactionViewCache.clear();
+            unspentOutputIndex.rebuild(wallet);
+            refreshBalance();
+            
+            // clearing fires no wallet event, so the journal never sees it; snapshot now, before the new chain
+            // file exists, or a crash would bring the transactions back next to an empty chain
+            if (walletJournal != null)
             {
-                oldestKey = keyAge;
+                walletJournal.compact();
             }
         }
-        
-        String oldestKeyString = String.valueOf(oldestKey);
-        System.err.println("+++oldest key: "+oldestKeyString);
+
+        // get the oldest key (for the checkpoint file); 0 if a key's creation time is unknown, so the chain is
+        // then downloaded from the start
+        long oldestKey = wallet.getEarliestKeyCreationTime();
+        log.info("Oldest key: " + oldestKey);
         
         // Load the block chain, if there is one stored locally. If it's going to be freshly created, checkpoint it.
         boolean chainExistedAlready = chainFile.exists();
         blockStore = new SPVBlockStore(networkParams, chainFile);
         if (!chainExistedAlready && oldestKey > 0) {
-            File checkpointsFile = new File(dataDirectory + "/" + appName + ".checkpoints");
-            if (checkpointsFile.exists()) {
-                System.err.println("+++using the checkpoint file");
-                try {
-                    FileInputStream stream = new FileInputStream(checkpointsFile);
-                    CheckpointManager.checkpoint(networkParams, stream, blockStore, oldestKey);
-                }
-                catch (Exception e) {
-                    // TODO
-                }
+            try {
+                checkpointBlockStore(oldestKey);
+            }
+            catch (IOException e) {
+                // don't leave a chain behind that would be synced from the genesis block on the next start
+                blockStore.close();
+                chainFile.delete();
+                throw e;
             }
         }
      
@@ -804,7 +1772,7 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
                 onPeerCountChanged(peerCount);
                 
                 // inform app about the expected height
-                onSynchronizationUpdate(-1, -1, peerGroup.getMostCommonChainHeight());
+                eventDispatcher.synchronizationUpdate(-1, -1, peerGroup.getMostCommonChainHeight());
             }
             
             @Override
@@ -814,7 +1782,11 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
             }
         });
             
+        // the peer group takes the fast catch-up time from the wallet's oldest key (less a week for clock drift)
+        // and moves it whenever keys are added: blocks before it are downloaded as headers only
         peerGroup.addWallet(wallet);
+        syncProgress.setFastCatchupTime(peerGroup.getFastCatchupTimeSecs());
+        log.info("Fast catch-up time: " + peerGroup.getFastCatchupTimeSecs());
         
         
         // inform the app over the current chains height; if there is a chain and already loaded blocks
@@ -824,18 +1796,53 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
             if(chainHead != null)
             {
                 storedChainHeight = chainHead.getHeight();
-                onSynchronizationUpdate(0.0, storedChainHeight, -1);
+                eventDispatcher.synchronizationUpdate(0.0, storedChainHeight, -1);
             }
         }
         
         peerGroup.start();
 
         // inform about the balance
-        onBalanceChanged();
+        eventDispatcher.balanceChanged();
 
         peerGroup.startBlockChainDownload(this);
 	}
 	
+    /**
+     * Starts the new chain at the checkpoint before the oldest key, taken from <appName>.checkpoints in the data
+     * directory (a checkpoint index or bitcoinj's format) or else from the index bundled for the network. A checkpoint
+     * file that can't be read is an error rather than a reason to sync from the genesis block.
+     */
+    private void checkpointBlockStore(long oldestKey) throws IOException, BlockStoreException
+    {
+        File checkpointsFile = new File(dataDirectory + "/" + appName + ".checkpoints");
+        CheckpointIndex checkpoints;
+        if (checkpointsFile.exists())
+        {
+            checkpoints = CheckpointIndex.open(networkParams, checkpointsFile);
+        }
+        else
+        {
+            checkpoints = CheckpointIndex.forNetwork(networkParams);
+        }
+
+        if (checkpoints == null)
+        {
+            log.info("No checkpoints for " + networkParams.getId() + ", syncing from the genesis block");
+            return;
+        }
+
+        StoredBlock checkpoint = checkpoints.checkpoint(blockStore, oldestKey);
+        if (checkpoint != null)
+        {
+            log.info("Starting the chain at the checkpoint at height " + checkpoint.getHeight());
+        }
+        else
+        {
+            log.info("The keys are older than the first checkpoint, syncing from the genesis block");
+        }
+    }
+
     /**
      * stop the bitcoinj app layer
      */
@@ -843,8 +1850,30 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
 	{
 		try {
             System.out.print("Shutting down ... ");
+            unregisterMetrics();
             peerGroup.stopAndWait();
-            wallet.saveToFile(walletFile);
+            syncProgress.stop();
+            for (SendRequestTable.PendingSend send : sendRequests.getUnfinished())
+            {
+                cancelSendRequest(send.getId());
+            }
+            // the manager may load and start again, the pool's threads stay for its lifetime
+            keyPool.detach();
+            walletSession.lock();
+            confidenceTracker.clear();
+            if (lazyWalletFile != null)
+            {
+                lazyWalletFile.stopAutosave();
+            }
+            if (walletJournal != null)
+            {
+                walletJournal.stop();
+                walletJournal = null;
+            }
+            else
+            {
+                saveWalletFile(wallet, walletFile);
+            }
             blockStore.close();
             System.out.print("done ");
         } catch (Exception e) {
@@ -853,21 +1882,50 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
 	}
 	
     /**
-     * TODO
+     * write the wallet's keys to the given file, decrypted with the key of the unlocked session (see unlockWallet)
+     * if the wallet is encrypted, same format as getWalletDump; fails if the encrypted wallet is locked
      */
-	public void walletExport(String path)
+	public void walletExport(String path) throws IOException, WrongPasswordException
 	{
+		KeyParameter aesKey = wallet.isEncrypted() ? walletSession.copyKey() : null;
+		if (wallet.isEncrypted() && aesKey == null)
+		{
+			// the dump would hold the keys without their private parts
+			throw new WrongPasswordException("The wallet is locked.");
+		}
 		
+		try
+		{
+			OutputStream stream = openPrivateFile(path);
+			try
+			{
+				writeWalletDump(stream, aesKey);
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		finally
+		{
+			wipeAesKey(aesKey);
+		}
 	}
 	
 	/* Implementing native callbacks here */
 	
 	public native void onTransactionChanged(String txid);
+	
+    public native void onTransactionsChanged(String[] txids);
     
 	public native void onTransactionFailed();
 	
     public native void onTransactionSuccess(String txid);
     
+    public native void onSendRequestSuccess(long requestId, String txid);
+    
+    public native void onSendRequestFailed(long requestId);
+    
     public native void onHICoinsReceived(String txid);
     
     public native void onHIWalletChanged();
@@ -883,27 +1941,19 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
 	/* Implementing peer listener */
 	public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft)
 	{
+		long start = System.nanoTime();
+		blocksDownloaded.increment();
 		int downloadedSoFar = blocksToDownload - blocksLeft;
 		if (blocksToDownload == 0)
         {
-			onSynchronizationUpdate(1.0, storedChainHeight+downloadedSoFar, -1);
+			eventDispatcher.synchronizationUpdate(1.0, storedChainHeight+downloadedSoFar, -1);
         }
 		else
         {
-            // report after every 100 block
-            if(blocksLeft % 100 == 0)
-            {
-                long currentChainHeight = -1; // -1 = no change (by default)
-                StoredBlock chainHead = chain.getChainHead();
-                if(chainHead != null)
-                {
-                    currentChainHeight = chainHead.getHeight();
-                }
-                
-                double progress = (double)downloadedSoFar / (double)blocksToDownload;
-                onSynchronizationUpdate(progress, currentChainHeight, -1);
-            }
+            // progress is reported by the tracker's timer
+            syncProgress.blockDownloaded(blocksLeft, block.getMessageSize(), block.getTimeSeconds());
         }
+		blockLatency.recordSince(start);
 	}
 	
 	public void onChainDownloadStarted(Peer peer, int blocksLeft)
@@ -917,9 +1967,13 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
         
 		blocksToDownload = blocksLeft;
 		if (blocksToDownload == 0)
-			onSynchronizationUpdate(1.0, currentChainHeight, -1);
+			eventDispatcher.synchronizationUpdate(1.0, currentChainHeight, -1);
 		else
-			onSynchronizationUpdate(0.0, -1, -1);
+        {
+			eventDispatcher.synchronizationUpdate(0.0, -1, -1);
+            syncProgress.setFastCatchupTime(peerGroup.getFastCatchupTimeSecs());
+            syncProgress.start(blocksToDownload);
+        }
 	}
 	
 	public void onPeerConnected(Peer peer, int peerCount)
@@ -937,53 +1991,29 @@ public class BitcoinManager implements PeerEventListener, Thread.UncaughtExcepti
 	
 	public void onTransaction(Peer peer, Transaction t)
 	{
-		
+		transactionsReceived.increment();
+		syncProgress.transactionReceived(t.getMessageSize());
 	}
     
     /* --- TransactionConfidence.Listener --- */
     
-    private void trackPendingTransactions(Wallet wallet)
-    {
-        // we won't receive onCoinsReceived again for transactions that we already know about,
-        // so we need to listen to confidence changes again after a restart
-        for (Transaction tx : wallet.getPendingTransactions())
-        {
-            trackTransaction(tx);
-        }
-    }
-    
-    private void trackTransaction(Transaction tx)
+    /** Number of confirmations after which a transaction's confidence is no longer followed, 1 by default. */
+    public void setConfidenceTrackingDepth(int depth)
     {
-        if (!trackedTransactions.contains(tx))
-        {
-            log.debug("Tracking transaction " + tx.getHashAsString());
-            
-            tx.getConfidence().addEventListener(this);
-            trackedTransactions.add(tx);
-        }
+        confidenceTracker.setUntrackDepth(depth);
     }
     
-    private void stopTrackingTransaction(Transaction tx)
+    public int getTrackedTransactionCount()
     {
-        if (trackedTransactions.contains(tx))
-        {
-            log.debug("Stopped tracking transaction " + tx.getHashAsString());
-            
-            tx.getConfidence().removeEventListener(this);
-            trackedTransactions.remove(tx);
-        }
+        return confidenceTracker.size();
     }
     
     public void onConfidenceChanged(final Transaction tx, TransactionConfidence.Listener.ChangeReason reason)
     {
-        if (!tx.isPending())
-        {
-            // coins were confirmed (appeared in a block) - we don't need to listen anymore
-            stopTrackingTransaction(tx);
-        }
+        transactionViewCache.invalidateIfChanged(tx);
         
         // update the UI
-        onTransactionChanged(tx.getHashAsString());
+        eventDispatcher.transactionChanged(tx.getHashAsString());
     }
 	
 	public List<Message> getData(Peer peer, GetDataMessage m)
@@ -0,0 +1,344 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.common.io.ByteStreams;
+
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The checkpoints of one network as a compact binary index: "HICP", a format version, the network id and the
+ * number of checkpoints, followed by their StoredBlock.serializeCompact() records in order of block time. A file is
+ * memory-mapped and a bundled resource read in one go; lookups binary-search the block times where they are and
+ * only deserialize the checkpoint they return.
+ *
+ * An index for each network is looked up on the classpath as checkpoints/&lt;network id&gt;.idx next to this class.
+ * main() builds one from a checkpoint file in bitcoinj's format, which open() reads as well.
+ */
+public class CheckpointIndex
+{
+    private static final byte[] MAGIC = { 'H', 'I', 'C', 'P' };
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    // chain work, height, then the header's version and two hashes come before its time
+    private static final int TIME_OFFSET = StoredBlock.CHAIN_WORK_BYTES + 4 + 4 + 32 + 32;
+
+    // like CheckpointManager.checkpoint(), in case the key was created by a machine with a wrong clock
+    private static final long CLOCK_DRIFT_SECS = 7 * 24 * 60 * 60;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final NetworkParameters params;
+    private final ByteBuffer records;
+    private final int count;
+    private final String source;
+
+    private CheckpointIndex(NetworkParameters params, ByteBuffer records, int count, String source)
+    {
+        this.params = params;
+        this.records = records;
+        this.count = count;
+        this.source = source;
+    }
+
+    /** The index bundled for the network, or null if there is none. */
+    public static CheckpointIndex forNetwork(NetworkParameters params) throws IOException
+    {
+        // bitcoinj 0.11 gives RegTestParams the id of the test network, whose checkpoints are bundled
+        if (params != NetworkParameters.fromID(params.getId()))
+        {
+            return null;
+        }
+
+        String resource = "checkpoints/" + params.getId() + ".idx";
+        InputStream stream = CheckpointIndex.class.getResourceAsStream(resource);
+        if (stream == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return read(params, ByteBuffer.wrap(ByteStreams.toByteArray(stream)), resource);
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Opens a checkpoint index file, or reads a checkpoint file in bitcoinj's format. */
+    public static CheckpointIndex open(NetworkParameters params, File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer mapping;
+        try
+        {
+            // the mapping stays valid after the channel is closed
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        if (hasMagic(mapping))
+        {
+            return read(params, mapping, file.getPath());
+        }
+
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            return fromCheckpointManagerFormat(params, stream, file.getPath());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /** Reads checkpoints in bitcoinj's format; its signatures are not checked, as CheckpointManager doesn't either. */
+    public static CheckpointIndex fromCheckpointManagerFormat(NetworkParameters params, InputStream stream,
+                                                              String source) throws IOException
+    {
+        List<StoredBlock> blocks;
+        try
+        {
+            blocks = new CheckpointReader(params, stream).getCheckpoints();
+        }
+        catch (IOException e)
+        {
+            throw new IOException("Could not read the checkpoints in " + source, e);
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Could not read the checkpoints in " + source, e);
+        }
+
+        ByteBuffer records = ByteBuffer.allocate(blocks.size() * RECORD_SIZE);
+        for (StoredBlock block : blocks)
+        {
+            block.serializeCompact(records);
+        }
+        records.flip();
+        return new CheckpointIndex(params, records, blocks.size(), source);
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < MAGIC.length)
+        {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        buffer.duplicate().get(magic);
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    private static CheckpointIndex read(NetworkParameters params, ByteBuffer buffer, String source) throws IOException
+    {
+        try
+        {
+            if (!hasMagic(buffer))
+            {
+                throw new IOException(source + " is not a checkpoint index");
+            }
+            buffer.position(buffer.position() + MAGIC.length);
+
+            int version = buffer.getInt();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported checkpoint index version " + version + " in " + source);
+            }
+
+            byte[] id = new byte[buffer.getShort() & 0xffff];
+            buffer.get(id);
+            String network = new String(id, UTF8);
+            if (!network.equals(params.getId()))
+            {
+                throw new IOException(source + " holds checkpoints for " + network + ", not " + params.getId());
+            }
+
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() != (long) count * RECORD_SIZE)
+            {
+                throw new IOException(source + " should hold " + count + " checkpoints but has "
+                                      + buffer.remaining() + " bytes of them");
+            }
+
+            CheckpointIndex index = new CheckpointIndex(params, buffer.slice(), count, source);
+            for (int i = 1; i < count; i++)
+            {
+                if (index.timeAt(i) < index.timeAt(i - 1))
+                {
+                    throw new IOException("The checkpoints in " + source + " are not in order of time");
+                }
+            }
+            return index;
+        }
+        catch (RuntimeException e)
+        {
+            // BufferUnderflowException and the like
+            throw new IOException("Truncated checkpoint index " + source, e);
+        }
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    /** The last checkpoint at or before the given time in seconds, or null if the first one is later. */
+    public StoredBlock getCheckpointBefore(long timeSecs) throws IOException
+    {
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            if (timeAt(middle) <= timeSecs)
+            {
+                found = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+
+        return (found >= 0) ? checkpointAt(found) : null;
+    }
+
+    /**
+     * Starts the empty block store at the checkpoint a week before the given key time, and returns it; returns null
+     * and leaves the store alone if the keys are older than the first checkpoint.
+     */
+    public StoredBlock checkpoint(BlockStore store, long keyTimeSecs) throws IOException, BlockStoreException
+    {
+        StoredBlock checkpoint = getCheckpointBefore(keyTimeSecs - CLOCK_DRIFT_SECS);
+        if (checkpoint != null)
+        {
+            store.put(checkpoint);
+            store.setChainHead(checkpoint);
+        }
+        return checkpoint;
+    }
+
+    /** Writes the index, as bundled or opened from a file. */
+    public void write(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        byte[] id = params.getId().getBytes(UTF8);
+        data.writeShort(id.length);
+        data.write(id);
+        data.writeInt(count);
+
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer all = records.duplicate();
+        all.position(0);
+        for (int i = 0; i < count; i++)
+        {
+            all.get(record);
+            data.write(record);
+        }
+        data.flush();
+    }
+
+    private long timeAt(int index)
+    {
+        // little endian, unsigned
+        int offset = index * RECORD_SIZE + TIME_OFFSET;
+        return (records.get(offset) & 0xffL)
+            | (records.get(offset + 1) & 0xffL) << 8
+            | (records.get(offset + 2) & 0xffL) << 16
+            | (records.get(offset + 3) & 0xffL) << 24;
+    }
+
+    private StoredBlock checkpointAt(int index) throws IOException
+    {
+        ByteBuffer record = records.duplicate();
+        record.position(index * RECORD_SIZE);
+        try
+        {
+            StoredBlock block = StoredBlock.deserializeCompact(params, record);
+            block.getHeader().verifyHeader();
+            return block;
+        }
+        catch (VerificationException e)
+        {
+            throw new IOException("Checkpoint " + index + " in " + source + " is not a valid block header", e);
+        }
+    }
+
+    private static class CheckpointReader extends CheckpointManager
+    {
+        CheckpointReader(NetworkParameters params, InputStream stream) throws IOException
+        {
+            super(params, stream);
+        }
+
+        List<StoredBlock> getCheckpoints()
+        {
+            return new ArrayList<StoredBlock>(checkpoints.values());
+        }
+    }
+
+    /** Converts a checkpoint file in bitcoinj's format: &lt;network id&gt; &lt;checkpoints&gt; &lt;index&gt;. */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("usage: CheckpointIndex <network id> <bitcoinj checkpoints> <index>");
+            System.exit(1);
+        }
+
+        // the log goes to the native side, which isn't there on the command line
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelError);
+
+        NetworkParameters params = NetworkParameters.fromID(args[0]);
+        if (params == null)
+        {
+            System.err.println("Unknown network " + args[0]);
+            System.exit(1);
+        }
+
+        CheckpointIndex index = open(params, new File(args[1]));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[2]));
+        try
+        {
+            index.write(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        System.out.println("Wrote " + index.size() + " checkpoints to " + args[2]);
+    }
+}
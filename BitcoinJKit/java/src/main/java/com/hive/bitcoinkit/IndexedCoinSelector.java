@@ -0,0 +1,60 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+
+/**
+ * Selects the inputs of a send from an UnspentOutputIndex. The wallet's default selector copies and sorts all
+ * candidates every time completeTx() asks it, which it does again for every fee adjustment; this one only walks
+ * the index as far as the target needs, so its cost grows with the number of inputs picked rather than with the
+ * number of outputs in the wallet. The candidate list passed in by the wallet is not used. CoinSelectionBenchmark
+ * in the benchmarks module compares the strategies with the default selector.
+ */
+public class IndexedCoinSelector implements CoinSelector
+{
+    public enum Strategy
+    {
+        /** Largest outputs first, the smallest transaction and fee. */
+        FEWEST_INPUTS,
+        /** Outputs that have been in the chain longest first. */
+        OLDEST_FIRST,
+        /** The outputs that add up closest to the amount, to avoid or minimize change. */
+        CLOSEST_MATCH
+    }
+
+    private final UnspentOutputIndex index;
+    private final Strategy strategy;
+
+    public IndexedCoinSelector(UnspentOutputIndex index, Strategy strategy)
+    {
+        this.index = index;
+        this.strategy = strategy;
+    }
+
+    public Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates)
+    {
+        UnspentOutputIndex.Selection selection;
+        switch (strategy)
+        {
+            case OLDEST_FIRST:
+                selection = index.selectOldestFirst(target);
+                break;
+            case CLOSEST_MATCH:
+                selection = index.selectClosest(target);
+                break;
+            default:
+                selection = index.selectLargestFirst(target);
+                break;
+        }
+        return new CoinSelection(selection.valueGathered, selection.getOutputs());
+    }
+}
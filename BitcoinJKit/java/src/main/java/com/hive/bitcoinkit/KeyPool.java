@@ -0,0 +1,221 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a number of unissued keys in the wallet ahead of time, so that handing out a fresh receive address is
+ * O(1) and the peers' bloom filters already match payments to it. Keys are generated in parallel on a background
+ * thread and added to the wallet in batches, which costs one filter recalculation per batch instead of one per key.
+ *
+ * The wallet's key list is always the issued keys followed by the pooled ones; the number of issued keys is
+ * stored in the KeyPoolExtension. Encrypted wallets can't take new unencrypted keys, so for them the pool is only
+ * drained, never refilled.
+ */
+public class KeyPool
+{
+    public static final int DEFAULT_LOOKAHEAD = 10;
+
+    private static final Logger log = LoggerFactory.getLogger(KeyPool.class);
+    private static final int GENERATOR_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final ExecutorService refillExecutor;
+    private final ExecutorService generatorExecutor;
+    private final ArrayDeque<ECKey> pooledKeys;
+
+    private Wallet wallet;
+    private KeyPoolExtension extension;
+    private int lookahead = DEFAULT_LOOKAHEAD;
+    private boolean refillScheduled;
+
+    public KeyPool()
+    {
+        pooledKeys = new ArrayDeque<ECKey>();
+        refillExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("KeyPool refill").setDaemon(true).build());
+        generatorExecutor = Executors.newFixedThreadPool(GENERATOR_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("KeyPool generator %d").setDaemon(true).build());
+    }
+
+    /** Starts handing out keys of the given wallet and tops its pool up in the background. */
+    public synchronized void attach(Wallet wallet, KeyPoolExtension extension)
+    {
+        this.wallet = wallet;
+        this.extension = extension;
+        pooledKeys.clear();
+
+        List<ECKey> keys = wallet.getKeys();
+        int issued = extension.getIssuedKeyCount();
+        if (issued == KeyPoolExtension.ISSUED_KEY_COUNT_UNKNOWN || issued > keys.size())
+        {
+            issued = keys.size();
+            extension.setIssuedKeyCount(issued);
+        }
+
+        for (int i = issued; i < keys.size(); i++)
+        {
+            pooledKeys.add(keys.get(i));
+        }
+
+        scheduleRefill();
+    }
+
+    /** Stops handing out keys of the wallet; the pool can be attached to a wallet again. */
+    public synchronized void detach()
+    {
+        wallet = null;
+        extension = null;
+        pooledKeys.clear();
+    }
+
+    /** Detaches and stops the background threads for good. */
+    public void shutdown()
+    {
+        detach();
+        refillExecutor.shutdownNow();
+        generatorExecutor.shutdownNow();
+    }
+
+    public synchronized void setLookahead(int newLookahead)
+    {
+        lookahead = newLookahead;
+        scheduleRefill();
+    }
+
+    public synchronized int getLookahead()
+    {
+        return lookahead;
+    }
+
+    public synchronized int getPooledKeyCount()
+    {
+        return pooledKeys.size();
+    }
+
+    public synchronized int getIssuedKeyCount()
+    {
+        return (extension != null) ? extension.getIssuedKeyCount() : 0;
+    }
+
+    /**
+     * Hands out the next pooled key, or generates one on the spot if the pool has run dry. Returns null if the
+     * wallet refused the new key.
+     */
+    public synchronized ECKey issueKey()
+    {
+        ECKey key = pooledKeys.poll();
+        if (key == null)
+        {
+            key = new ECKey();
+            if (!wallet.addKey(key))
+            {
+                return null;
+            }
+        }
+
+        extension.setIssuedKeyCount(extension.getIssuedKeyCount() + 1);
+        scheduleRefill();
+        return key;
+    }
+
+    private void scheduleRefill()
+    {
+        if (refillScheduled || wallet == null || wallet.isEncrypted() || pooledKeys.size() >= lookahead)
+        {
+            return;
+        }
+
+        refillScheduled = true;
+        refillExecutor.execute(new Runnable() {
+            public void run()
+            {
+                refill();
+            }
+        });
+    }
+
+    private void refill()
+    {
+        Wallet targetWallet;
+        int needed;
+        synchronized (this)
+        {
+            targetWallet = wallet;
+            needed = lookahead - pooledKeys.size();
+            if (targetWallet == null || needed <= 0)
+            {
+                refillScheduled = false;
+                return;
+            }
+        }
+
+        try
+        {
+            List<ECKey> batch = generateKeys(needed);
+
+            synchronized (this)
+            {
+                refillScheduled = false;
+
+                // the wallet may have been swapped or encrypted while we were generating
+                if (wallet != targetWallet || wallet.isEncrypted())
+                {
+                    return;
+                }
+
+                wallet.addKeys(batch);
+                pooledKeys.addAll(batch);
+                log.debug("Added " + batch.size() + " keys to the key pool");
+            }
+        }
+        catch (Exception e)
+        {
+            synchronized (this)
+            {
+                refillScheduled = false;
+            }
+            log.warn("Could not refill the key pool", e);
+        }
+    }
+
+    private List<ECKey> generateKeys(int count) throws Exception
+    {
+        int tasks = Math.min(count, GENERATOR_THREADS);
+        List<Callable<List<ECKey>>> work = new ArrayList<Callable<List<ECKey>>>(tasks);
+
+        for (int t = 0; t < tasks; t++)
+        {
+            final int share = count / tasks + ((t < count % tasks) ? 1 : 0);
+            work.add(new Callable<List<ECKey>>() {
+                public List<ECKey> call()
+                {
+                    List<ECKey> keys = new ArrayList<ECKey>(share);
+                    for (int i = 0; i < share; i++)
+                    {
+                        keys.add(new ECKey());
+                    }
+                    return keys;
+                }
+            });
+        }
+
+        List<ECKey> batch = new ArrayList<ECKey>(count);
+        for (Future<List<ECKey>> result : generatorExecutor.invokeAll(work))
+        {
+            batch.addAll(result.get());
+        }
+        return batch;
+    }
+}
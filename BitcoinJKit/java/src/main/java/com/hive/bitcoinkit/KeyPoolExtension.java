@@ -0,0 +1,76 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletExtension;
+import com.google.bitcoin.store.UnreadableWalletException;
+import java.nio.ByteBuffer;
+
+/**
+ * Remembers how many of the wallet's keys have been handed out. Keys past that count were generated ahead of
+ * time by the KeyPool and are already watched by the wallet, but haven't been shown to the user yet.
+ */
+public class KeyPoolExtension implements WalletExtension
+{
+    static final String EXTENSION_ID = KeyPoolExtension.class.getName();
+
+    /** Wallets written before the key pool existed: every key in them has been handed out. */
+    public static final int ISSUED_KEY_COUNT_UNKNOWN = -1;
+
+    private int issuedKeyCount = ISSUED_KEY_COUNT_UNKNOWN;
+
+    public KeyPoolExtension()
+    {
+    }
+
+    public synchronized int getIssuedKeyCount()
+    {
+        return issuedKeyCount;
+    }
+
+    public synchronized void setIssuedKeyCount(int count)
+    {
+        issuedKeyCount = count;
+    }
+
+
+    /** Returns a Java package/class style name used to disambiguate this extension from others. */
+    @Override
+    public String getWalletExtensionID()
+    {
+        return EXTENSION_ID;
+    }
+
+    /**
+     * If this returns true, the mandatory flag is set when the wallet is serialized and attempts to load it without
+     * the extension being in the wallet will throw an exception. This method should not change its result during
+     * the objects lifetime.
+     */
+    @Override
+    public boolean isWalletExtensionMandatory()
+    {
+        return false;
+    }
+
+    /** Returns bytes that will be saved in the wallet. */
+    @Override
+    public byte[] serializeWalletExtension()
+    {
+        return ByteBuffer.allocate(4).putInt(getIssuedKeyCount()).array();
+    }
+
+    /** Loads the contents of this object from the wallet. */
+    @Override
+    public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception
+    {
+        if (data.length != 4)
+        {
+            throw new UnreadableWalletException("The key pool extension should hold 4 bytes, not " + data.length);
+        }
+        setIssuedKeyCount(ByteBuffer.wrap(data).getInt());
+    }
+
+    @Override
+    public String toString() {
+        return "KeyPoolExtension: issued keys = " + getIssuedKeyCount();
+    }
+}
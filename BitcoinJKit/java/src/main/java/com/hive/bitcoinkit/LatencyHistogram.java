@@ -0,0 +1,134 @@
+package com.hive.bitcoinkit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in nanoseconds with log-linear buckets like HdrHistogram: every power of two range
+ * is split into 32 buckets, so a recorded value is off by at most about 3%. Values from 1ns to 2^63ns fit into a
+ * fixed array; recording is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram()
+    {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /** Records the time since startNanos, a System.nanoTime() value. */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value))
+        {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long n = count.get();
+        return (n > 0) ? sum.get() / n : 0;
+    }
+
+    /**
+     * The value below which the given fraction (0..1) of the recorded values lie, as the upper bound of its
+     * bucket. Concurrent recording may make this slightly inconsistent with getCount(), which is fine for
+     * reporting.
+     */
+    public long getPercentile(double fraction)
+    {
+        long n = count.get();
+        if (n == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += buckets.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** Count, mean, p50, p90, p99, p999 and max in microseconds. */
+    public String toJSON()
+    {
+        return "{ \"count\": " + getCount()
+            + ", \"meanMicros\": " + micros(getMean())
+            + ", \"p50Micros\": " + micros(getPercentile(0.5))
+            + ", \"p90Micros\": " + micros(getPercentile(0.9))
+            + ", \"p99Micros\": " + micros(getPercentile(0.99))
+            + ", \"p999Micros\": " + micros(getPercentile(0.999))
+            + ", \"maxMicros\": " + micros(getMax())
+            + " }";
+    }
+
+    private static double micros(long nanos)
+    {
+        return nanos / 1000.0;
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> exponent) - SUB_BUCKETS;
+        return SUB_BUCKETS + exponent * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,939 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+
+import org.bitcoinj.wallet.Protos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fast-start loading of large wallet files. The file is memory-mapped and its top-level protobuf fields are scanned
+ * without parsing them; fully spent transactions that are buried deeper than DEFERRED_DEPTH are left in the mapping
+ * and only their offsets are kept. Keys, extensions and all other transactions are parsed and read into the wallet
+ * as usual, so balances, coin selection and bloom filters are complete right away.
+ *
+ * Deferred transactions are materialized into the wallet (together with their deferred parents, which are needed
+ * to compute their value) the first time they are requested. Transactions that the loaded ones reference through
+ * spent_by or overriding_transaction are never deferred, bitcoinj can't read a wallet with dangling references.
+ *
+ * Saves must go through save()/writeTo() instead of Wallet.saveToFile(): the deferred transactions are copied over
+ * from the mapping as they were read. The mapping stays valid after the file has been replaced by a save.
+ */
+public class LazyWalletFile
+{
+    public static final int DEFERRED_DEPTH = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(LazyWalletFile.class);
+    private static final LatencyHistogram saveLatency = Metrics.get().histogram("walletSave");
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private final MappedByteBuffer mapping;
+    private final NetworkParameters params;
+    private final LinkedHashMap<Sha256Hash, Record> deferred;
+    private final Set<Sha256Hash> materialized;
+    private Protos.Wallet eagerProto;
+
+    private long scanMillis;
+    private long materializedNanos;
+
+    private ScheduledExecutorService autosaveExecutor;
+    private volatile boolean dirty;
+
+    private LazyWalletFile(MappedByteBuffer mapping, NetworkParameters params)
+    {
+        this.mapping = mapping;
+        this.params = params;
+        this.deferred = new LinkedHashMap<Sha256Hash, Record>();
+        this.materialized = new HashSet<Sha256Hash>();
+    }
+
+    /**
+     * Maps and scans the wallet file. The returned object holds the parsed wallet without the deferred transactions
+     * (getEagerProto()); read it into a wallet with WalletProtobufSerializer.readWallet().
+     */
+    public static LazyWalletFile open(File file) throws IOException, UnreadableWalletException
+    {
+        long start = System.currentTimeMillis();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapping;
+        try
+        {
+            // the mapping stays valid after the channel is closed
+            mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        Scan scan = new Scan();
+        scan.run(mapping);
+
+        ByteArrayOutputStream eagerBytes = new ByteArrayOutputStream(scan.eagerSize());
+        scan.writeEager(mapping, eagerBytes);
+        Protos.Wallet eagerProto = Protos.Wallet.parseFrom(eagerBytes.toByteArray());
+
+        NetworkParameters params = NetworkParameters.fromID(eagerProto.getNetworkIdentifier());
+        if (params == null)
+        {
+            throw new UnreadableWalletException("Unknown network parameters ID " + eagerProto.getNetworkIdentifier());
+        }
+
+        LazyWalletFile lazyFile = new LazyWalletFile(mapping, params);
+        lazyFile.eagerProto = eagerProto;
+        for (Candidate candidate : scan.deferredCandidates())
+        {
+            lazyFile.deferred.put(candidate.hash, new Record(candidate.hash, candidate.fieldOffset,
+                                                               candidate.fieldLength, candidate.updatedAt));
+        }
+        lazyFile.scanMillis = System.currentTimeMillis() - start;
+
+        log.info("Mapped wallet " + file + ": " + eagerProto.getTransactionCount() + " transactions loaded, "
+                 + lazyFile.deferred.size() + " deferred (" + lazyFile.scanMillis + "ms)");
+        return lazyFile;
+    }
+
+    public NetworkParameters getParams()
+    {
+        return params;
+    }
+
+    public synchronized Protos.Wallet getEagerProto()
+    {
+        return eagerProto;
+    }
+
+    /** Drops the read-time state once it has been read into the wallet. */
+    public synchronized void releaseEagerProto()
+    {
+        eagerProto = null;
+    }
+
+    /** Forgets deferred transactions, e.g. because a newer version of them was recovered from the journal. */
+    public synchronized void discard(Collection<Sha256Hash> hashes)
+    {
+        for (Sha256Hash hash : hashes)
+        {
+            deferred.remove(hash);
+            materialized.remove(hash);
+        }
+    }
+
+    /** Forgets all deferred transactions, for when the wallet's transactions are cleared. */
+    public synchronized void clear()
+    {
+        deferred.clear();
+        materialized.clear();
+    }
+
+    public synchronized int getDeferredCount()
+    {
+        return deferred.size() - materialized.size();
+    }
+
+    /** Hashes and update times of the transactions that are not in the wallet yet, for the transaction index. */
+    public synchronized Map<Sha256Hash, Long> getDeferredUpdateTimes()
+    {
+        Map<Sha256Hash, Long> updateTimes = new HashMap<Sha256Hash, Long>(deferred.size());
+        for (Record record : deferred.values())
+        {
+            if (!materialized.contains(record.hash))
+            {
+                updateTimes.put(record.hash, record.updatedAt);
+            }
+        }
+        return updateTimes;
+    }
+
+    public synchronized boolean isDeferred(Sha256Hash hash)
+    {
+        return deferred.containsKey(hash) && !materialized.contains(hash);
+    }
+
+    /* --- Materializing --- */
+
+    /** Returns the transaction from the wallet, reading it from the file first if it was deferred. */
+    public Transaction getTransaction(Wallet wallet, Sha256Hash hash) throws IOException
+    {
+        return materialize(wallet, Collections.singletonList(hash)).get(hash);
+    }
+
+    /**
+     * Reads the given deferred transactions and their deferred parents into the wallet. Returns the transactions
+     * for all given hashes that the wallet has afterwards.
+     */
+    public synchronized Map<Sha256Hash, Transaction> materialize(Wallet wallet, List<Sha256Hash> hashes)
+        throws IOException
+    {
+        long start = System.nanoTime();
+
+        List<Sha256Hash> wanted = new ArrayList<Sha256Hash>();
+        for (Sha256Hash hash : hashes)
+        {
+            if (isDeferred(hash))
+            {
+                wanted.add(hash);
+            }
+        }
+
+        if (!wanted.isEmpty())
+        {
+            List<Protos.Transaction> protos = readDeferred(wanted);
+
+            // the value of a transaction is computed from the outputs it spends, so load those too
+            List<Sha256Hash> parents = new ArrayList<Sha256Hash>();
+            Set<Sha256Hash> wantedSet = new HashSet<Sha256Hash>(wanted);
+            for (Protos.Transaction txProto : protos)
+            {
+                for (Protos.TransactionInput input : txProto.getTransactionInputList())
+                {
+                    Sha256Hash parent = WalletProtobufSerializer.byteStringToHash(input.getTransactionOutPointHash());
+                    if (isDeferred(parent) && wantedSet.add(parent))
+                    {
+                        parents.add(parent);
+                    }
+                }
+            }
+            protos.addAll(readDeferred(parents));
+
+            addToWallet(wallet, protos);
+            materializedNanos += System.nanoTime() - start;
+        }
+
+        Map<Sha256Hash, Transaction> transactions = new HashMap<Sha256Hash, Transaction>(hashes.size());
+        for (Sha256Hash hash : hashes)
+        {
+            Transaction tx = wallet.getTransaction(hash);
+            if (tx != null)
+            {
+                transactions.put(hash, tx);
+            }
+        }
+        return transactions;
+    }
+
+    private List<Protos.Transaction> readDeferred(List<Sha256Hash> hashes) throws IOException
+    {
+        List<Protos.Transaction> protos = new ArrayList<Protos.Transaction>(hashes.size());
+        for (Sha256Hash hash : hashes)
+        {
+            Record record = deferred.get(hash);
+
+            ByteBuffer field = slice(record.fieldOffset, record.fieldLength);
+            skipVarint(field); // tag
+            int length = readVarint32(field);
+            byte[] bytes = new byte[length];
+            field.get(bytes);
+            protos.add(Protos.Transaction.parseFrom(bytes));
+        }
+        return protos;
+    }
+
+    /**
+     * Lets bitcoinj build the transactions from a wallet made of just them, then moves them into the real wallet
+     * and reconnects the spends that had to be cut to read them in isolation.
+     */
+    private void addToWallet(Wallet wallet, List<Protos.Transaction> protos) throws IOException
+    {
+        Protos.Wallet.Builder isolated = Protos.Wallet.newBuilder().setNetworkIdentifier(params.getId());
+        for (Protos.Transaction txProto : protos)
+        {
+            Protos.Transaction.Builder builder = txProto.toBuilder();
+            for (int i = 0; i < builder.getTransactionOutputCount(); i++)
+            {
+                builder.getTransactionOutputBuilder(i).clearSpentByTransactionHash().clearSpentByTransactionIndex();
+            }
+            if (builder.hasConfidence())
+            {
+                builder.getConfidenceBuilder().clearOverridingTransaction();
+            }
+            isolated.addTransaction(builder);
+        }
+
+        Wallet isolatedWallet = new Wallet(params);
+        try
+        {
+            new WalletProtobufSerializer().readWallet(isolated.build(), isolatedWallet);
+        }
+        catch (UnreadableWalletException e)
+        {
+            throw new IOException("Could not read deferred wallet transactions", e);
+        }
+
+        List<Transaction> added = new ArrayList<Transaction>(protos.size());
+        for (Protos.Transaction txProto : protos)
+        {
+            Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(txProto.getHash());
+            Transaction tx = isolatedWallet.getTransaction(hash);
+            if (tx != null && wallet.getTransaction(hash) == null)
+            {
+                wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, tx));
+                added.add(tx);
+            }
+            materialized.add(hash);
+        }
+
+        for (int t = 0; t < added.size(); t++)
+        {
+            Transaction tx = added.get(t);
+
+            // outputs of materialized parents this spends
+            for (TransactionInput input : tx.getInputs())
+            {
+                Sha256Hash parentHash = input.getOutpoint().getHash();
+                if (deferred.containsKey(parentHash))
+                {
+                    markSpent(wallet.getTransaction(parentHash), (int) input.getOutpoint().getIndex(), input);
+                }
+            }
+
+            // own outputs, spent by transactions that are in the wallet already
+            List<Protos.TransactionOutput> outputProtos = protos.get(t).getTransactionOutputList();
+            for (int i = 0; i < outputProtos.size(); i++)
+            {
+                Protos.TransactionOutput outputProto = outputProtos.get(i);
+                if (!outputProto.hasSpentByTransactionHash())
+                {
+                    continue;
+                }
+
+                Transaction spender = wallet.getTransaction(
+                    WalletProtobufSerializer.byteStringToHash(outputProto.getSpentByTransactionHash()));
+                int inputIndex = outputProto.getSpentByTransactionIndex();
+                if (spender != null && inputIndex < spender.getInputs().size())
+                {
+                    markSpent(tx, i, spender.getInput(inputIndex));
+                }
+            }
+        }
+    }
+
+    private static void markSpent(Transaction parent, int index, TransactionInput input)
+    {
+        if (parent == null || index >= parent.getOutputs().size())
+        {
+            return;
+        }
+
+        TransactionOutput output = parent.getOutput(index);
+        if (output.isAvailableForSpending())
+        {
+            output.markAsSpent(input);
+        }
+    }
+
+    /* --- Saving --- */
+
+    /** Saves the wallet together with its deferred transactions, replacing the file atomically. */
+    public void save(Wallet wallet, File file) throws IOException
+    {
+        long start = System.nanoTime();
+        File temp = File.createTempFile("wallet", null, file.getAbsoluteFile().getParentFile());
+        FileOutputStream stream = new FileOutputStream(temp);
+        try
+        {
+            writeTo(wallet, stream);
+            stream.flush();
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        // same as Wallet.saveToFile, renaming over an existing file fails on Windows
+        if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file)))
+        {
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+        saveLatency.recordSince(start);
+    }
+
+    /**
+     * Writes the wallet and appends the deferred transactions to it as raw protobuf fields (repeated fields may
+     * come in any order). Materialized transactions that are still fully spent are written from the mapping as
+     * well, their in-memory copy may be missing spends to transactions that are still deferred.
+     *
+     * The wallet is serialized once; its bytes are copied over field by field, only the hash and pool of each
+     * transaction are read to tell which ones to leave out.
+     */
+    public void writeTo(Wallet wallet, OutputStream stream) throws IOException
+    {
+        WalletBytes walletBytes = new WalletBytes();
+        wallet.saveToFileStream(walletBytes);
+        ByteBuffer buffer = walletBytes.wrap();
+
+        synchronized (this)
+        {
+            Set<Sha256Hash> superseded = new HashSet<Sha256Hash>();
+            while (buffer.hasRemaining())
+            {
+                int fieldOffset = buffer.position();
+                int tag = readVarint32(buffer);
+                if ((tag >>> 3) == Protos.Wallet.TRANSACTION_FIELD_NUMBER && (tag & 7) == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    int length = readVarint32(buffer);
+                    Candidate saved = scanSavedTransaction(slice(buffer, buffer.position(), length));
+                    buffer.position(buffer.position() + length);
+
+                    if (saved.hash != null && deferred.containsKey(saved.hash))
+                    {
+                        if (saved.pool == Protos.Transaction.Pool.SPENT_VALUE)
+                        {
+                            continue;
+                        }
+                        superseded.add(saved.hash);
+                    }
+                }
+                else
+                {
+                    skipField(buffer, tag & 7);
+                }
+                stream.write(walletBytes.array(), fieldOffset, buffer.position() - fieldOffset);
+            }
+
+            WritableByteChannel channel = Channels.newChannel(stream);
+            for (Record record : deferred.values())
+            {
+                if (!superseded.contains(record.hash))
+                {
+                    ByteBuffer field = slice(record.fieldOffset, record.fieldLength);
+                    while (field.hasRemaining())
+                    {
+                        channel.write(field);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Reads only the hash and pool of a transaction the wallet just serialized. */
+    private static Candidate scanSavedTransaction(ByteBuffer buffer) throws IOException
+    {
+        Candidate candidate = new Candidate();
+        while (buffer.hasRemaining())
+        {
+            int tag = readVarint32(buffer);
+            int field = tag >>> 3;
+            int wireType = tag & 7;
+
+            if (field == Protos.Transaction.HASH_FIELD_NUMBER && wireType == WIRETYPE_LENGTH_DELIMITED)
+            {
+                candidate.hash = readHash(buffer);
+            }
+            else if (field == Protos.Transaction.POOL_FIELD_NUMBER && wireType == WIRETYPE_VARINT)
+            {
+                candidate.pool = (int) readVarint64(buffer);
+            }
+            else
+            {
+                skipField(buffer, wireType);
+            }
+        }
+        return candidate;
+    }
+
+    /** The serialized wallet, read in place instead of copied out by toByteArray(). */
+    private static class WalletBytes extends ByteArrayOutputStream
+    {
+        WalletBytes()
+        {
+            super(64 * 1024);
+        }
+
+        byte[] array()
+        {
+            return buf;
+        }
+
+        ByteBuffer wrap()
+        {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Replacement for Wallet.autosaveToFile, which would drop the deferred transactions: saves at most once per
+     * second after the wallet changed or saw a new block.
+     */
+    public synchronized void startAutosave(final Wallet wallet, final File file)
+    {
+        stopAutosave();
+
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet)
+            {
+                dirty = true;
+            }
+
+            @Override
+            public void onKeysAdded(Wallet wallet, List<ECKey> keys)
+            {
+                dirty = true;
+            }
+        });
+
+        autosaveExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Wallet autosave").setDaemon(true).build());
+        autosaveExecutor.scheduleWithFixedDelay(new Runnable() {
+            private Sha256Hash savedLastBlock = wallet.getLastBlockSeenHash();
+
+            public void run()
+            {
+                Sha256Hash lastBlock = wallet.getLastBlockSeenHash();
+                if (!dirty && (lastBlock == null || lastBlock.equals(savedLastBlock)))
+                {
+                    return;
+                }
+
+                dirty = false;
+                try
+                {
+                    save(wallet, file);
+                    savedLastBlock = lastBlock;
+                }
+                catch (IOException e)
+                {
+                    dirty = true;
+                    log.error("Could not save the wallet", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopAutosave()
+    {
+        if (autosaveExecutor != null)
+        {
+            autosaveExecutor.shutdownNow();
+            autosaveExecutor = null;
+        }
+    }
+
+    /* --- Measurements --- */
+
+    public synchronized String getStatsJSON()
+    {
+        return "{ \"mappedBytes\": " + mapping.capacity()
+            + ", \"scanMillis\": " + scanMillis
+            + ", \"deferred\": " + getDeferredCount()
+            + ", \"materialized\": " + materialized.size()
+            + ", \"materializeMillis\": " + materializedNanos / 1000000
+            + " }";
+    }
+
+    /* --- Scanning --- */
+
+    private ByteBuffer slice(int offset, int length)
+    {
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer;
+    }
+
+    /** Location of a deferred transaction's field (tag, length and message) in the mapped file. */
+    private static class Record
+    {
+        final Sha256Hash hash;
+        final int fieldOffset;
+        final int fieldLength;
+        final long updatedAt;
+
+        Record(Sha256Hash hash, int fieldOffset, int fieldLength, long updatedAt)
+        {
+            this.hash = hash;
+            this.fieldOffset = fieldOffset;
+            this.fieldLength = fieldLength;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    /** What the scan needs to know about a transaction to decide whether it can be deferred. */
+    private static class Candidate
+    {
+        Sha256Hash hash;
+        int fieldOffset;
+        int fieldLength;
+        int pool = -1;
+        long updatedAt;
+        int confidenceType = -1;
+        int appearedAtHeight = -1;
+        int depth;
+        List<Sha256Hash> references = new ArrayList<Sha256Hash>(2);
+        boolean deferred;
+    }
+
+    /** Single pass over the top-level fields of the mapped wallet. */
+    private static class Scan
+    {
+        private final List<int[]> eagerFields = new ArrayList<int[]>();
+        private final List<Candidate> candidates = new ArrayList<Candidate>();
+        private final Map<Sha256Hash, Candidate> candidatesByHash = new HashMap<Sha256Hash, Candidate>();
+        private int lastSeenBlockHeight = -1;
+
+        void run(ByteBuffer mapping) throws IOException
+        {
+            ByteBuffer buffer = mapping.duplicate();
+            while (buffer.hasRemaining())
+            {
+                int fieldOffset = buffer.position();
+                int tag = readVarint32(buffer);
+                int field = tag >>> 3;
+                int wireType = tag & 7;
+
+                if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && wireType == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    int length = readVarint32(buffer);
+                    Candidate candidate = scanTransaction(slice(buffer, buffer.position(), length));
+                    buffer.position(buffer.position() + length);
+
+                    candidate.fieldOffset = fieldOffset;
+                    candidate.fieldLength = buffer.position() - fieldOffset;
+                    candidates.add(candidate);
+                    if (candidate.hash != null)
+                    {
+                        candidatesByHash.put(candidate.hash, candidate);
+                    }
+                    continue;
+                }
+
+                if (field == Protos.Wallet.LAST_SEEN_BLOCK_HEIGHT_FIELD_NUMBER && wireType == WIRETYPE_VARINT)
+                {
+                    lastSeenBlockHeight = (int) readVarint64(buffer);
+                }
+                else
+                {
+                    skipField(buffer, wireType);
+                }
+                eagerFields.add(new int[] { fieldOffset, buffer.position() - fieldOffset });
+            }
+
+            decide();
+        }
+
+        /** Defers buried, fully spent transactions unless a loaded transaction refers to them. */
+        private void decide()
+        {
+            ArrayDeque<Candidate> loaded = new ArrayDeque<Candidate>();
+            for (Candidate candidate : candidates)
+            {
+                candidate.deferred = isDeferrable(candidate);
+                if (!candidate.deferred)
+                {
+                    loaded.add(candidate);
+                }
+            }
+
+            while (!loaded.isEmpty())
+            {
+                for (Sha256Hash reference : loaded.poll().references)
+                {
+                    Candidate target = candidatesByHash.get(reference);
+                    if (target != null && target.deferred)
+                    {
+                        target.deferred = false;
+                        loaded.add(target);
+                    }
+                }
+            }
+        }
+
+        private boolean isDeferrable(Candidate candidate)
+        {
+            if (candidate.hash == null || candidate.pool != Protos.Transaction.Pool.SPENT_VALUE
+                || candidate.confidenceType != Protos.TransactionConfidence.Type.BUILDING_VALUE)
+            {
+                return false;
+            }
+
+            int depth = candidate.depth;
+            if (lastSeenBlockHeight > 0 && candidate.appearedAtHeight >= 0)
+            {
+                depth = Math.max(depth, lastSeenBlockHeight - candidate.appearedAtHeight + 1);
+            }
+            return depth >= DEFERRED_DEPTH;
+        }
+
+        List<Candidate> deferredCandidates()
+        {
+            List<Candidate> deferredCandidates = new ArrayList<Candidate>();
+            for (Candidate candidate : candidates)
+            {
+                if (candidate.deferred)
+                {
+                    deferredCandidates.add(candidate);
+                }
+            }
+            return deferredCandidates;
+        }
+
+        int eagerSize()
+        {
+            int size = 0;
+            for (int[] field : eagerFields)
+            {
+                size += field[1];
+            }
+            for (Candidate candidate : candidates)
+            {
+                if (!candidate.deferred)
+                {
+                    size += candidate.fieldLength;
+                }
+            }
+            return size;
+        }
+
+        /** Copies all fields but the deferred transactions, in file order. */
+        void writeEager(ByteBuffer mapping, ByteArrayOutputStream out) throws IOException
+        {
+            List<int[]> fields = new ArrayList<int[]>(eagerFields);
+            for (Candidate candidate : candidates)
+            {
+                if (!candidate.deferred)
+                {
+                    fields.add(new int[] { candidate.fieldOffset, candidate.fieldLength });
+                }
+            }
+            Collections.sort(fields, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b)
+                {
+                    return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+                }
+            });
+
+            byte[] chunk = new byte[8192];
+            for (int[] field : fields)
+            {
+                ByteBuffer buffer = slice(mapping, field[0], field[1]);
+                while (buffer.hasRemaining())
+                {
+                    int n = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+        }
+
+        private Candidate scanTransaction(ByteBuffer buffer) throws IOException
+        {
+            Candidate candidate = new Candidate();
+            while (buffer.hasRemaining())
+            {
+                int tag = readVarint32(buffer);
+                int field = tag >>> 3;
+                int wireType = tag & 7;
+
+                if (field == Protos.Transaction.HASH_FIELD_NUMBER && wireType == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    candidate.hash = readHash(buffer);
+                }
+                else if (field == Protos.Transaction.POOL_FIELD_NUMBER && wireType == WIRETYPE_VARINT)
+                {
+                    candidate.pool = (int) readVarint64(buffer);
+                }
+                else if (field == Protos.Transaction.UPDATED_AT_FIELD_NUMBER && wireType == WIRETYPE_VARINT)
+                {
+                    candidate.updatedAt = readVarint64(buffer);
+                }
+                else if (field == Protos.Transaction.TRANSACTION_OUTPUT_FIELD_NUMBER
+                         && wireType == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    int length = readVarint32(buffer);
+                    scanOutput(slice(buffer, buffer.position(), length), candidate);
+                    buffer.position(buffer.position() + length);
+                }
+                else if (field == Protos.Transaction.CONFIDENCE_FIELD_NUMBER && wireType == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    int length = readVarint32(buffer);
+                    scanConfidence(slice(buffer, buffer.position(), length), candidate);
+                    buffer.position(buffer.position() + length);
+                }
+                else
+                {
+                    skipField(buffer, wireType);
+                }
+            }
+            return candidate;
+        }
+
+        private void scanOutput(ByteBuffer buffer, Candidate candidate) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                int tag = readVarint32(buffer);
+                if ((tag >>> 3) == Protos.TransactionOutput.SPENT_BY_TRANSACTION_HASH_FIELD_NUMBER
+                    && (tag & 7) == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    candidate.references.add(readHash(buffer));
+                }
+                else
+                {
+                    skipField(buffer, tag & 7);
+                }
+            }
+        }
+
+        private void scanConfidence(ByteBuffer buffer, Candidate candidate) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                int tag = readVarint32(buffer);
+                int field = tag >>> 3;
+                int wireType = tag & 7;
+
+                if (field == Protos.TransactionConfidence.TYPE_FIELD_NUMBER && wireType == WIRETYPE_VARINT)
+                {
+                    candidate.confidenceType = (int) readVarint64(buffer);
+                }
+                else if (field == Protos.TransactionConfidence.APPEARED_AT_HEIGHT_FIELD_NUMBER
+                         && wireType == WIRETYPE_VARINT)
+                {
+                    candidate.appearedAtHeight = (int) readVarint64(buffer);
+                }
+                else if (field == Protos.TransactionConfidence.DEPTH_FIELD_NUMBER && wireType == WIRETYPE_VARINT)
+                {
+                    candidate.depth = (int) readVarint64(buffer);
+                }
+                else if (field == Protos.TransactionConfidence.OVERRIDING_TRANSACTION_FIELD_NUMBER
+                         && wireType == WIRETYPE_LENGTH_DELIMITED)
+                {
+                    candidate.references.add(readHash(buffer));
+                }
+                else
+                {
+                    skipField(buffer, wireType);
+                }
+            }
+        }
+    }
+
+    /* --- Protobuf wire format --- */
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) throws IOException
+    {
+        if (length < 0 || offset + length > buffer.limit())
+        {
+            throw new IOException("Truncated wallet file");
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice;
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buffer) throws IOException
+    {
+        int length = readVarint32(buffer);
+        if (length > buffer.remaining())
+        {
+            throw new IOException("Truncated wallet file");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return WalletProtobufSerializer.byteStringToHash(ByteString.copyFrom(bytes));
+    }
+
+    private static int readVarint32(ByteBuffer buffer) throws IOException
+    {
+        return (int) readVarint64(buffer);
+    }
+
+    private static long readVarint64(ByteBuffer buffer) throws IOException
+    {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            if (!buffer.hasRemaining())
+            {
+                throw new IOException("Truncated wallet file");
+            }
+            byte b = buffer.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in wallet file");
+    }
+
+    private static void skipVarint(ByteBuffer buffer) throws IOException
+    {
+        readVarint64(buffer);
+    }
+
+    private static void skipField(ByteBuffer buffer, int wireType) throws IOException
+    {
+        int length;
+        switch (wireType)
+        {
+            case WIRETYPE_VARINT:
+                skipVarint(buffer);
+                return;
+            case WIRETYPE_FIXED64:
+                length = 8;
+                break;
+            case WIRETYPE_LENGTH_DELIMITED:
+                length = readVarint32(buffer);
+                break;
+            case WIRETYPE_FIXED32:
+                length = 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType + " in wallet file");
+        }
+
+        if (length < 0 || length > buffer.remaining())
+        {
+            throw new IOException("Truncated wallet file");
+        }
+        buffer.position(buffer.position() + length);
+    }
+}
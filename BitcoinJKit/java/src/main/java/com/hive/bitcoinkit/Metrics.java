@@ -0,0 +1,216 @@
+package com.hive.bitcoinkit;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Process wide registry of counters, gauges and latency histograms. Instruments are created once, when a class
+ * that records into them is set up, and kept in fields; recording is then a lock-free atomic update without
+ * allocation. The registry is read as JSON through getMetricsJSON() and through JMX as
+ * com.hive.bitcoinkit:type=Metrics.
+ */
+public class Metrics
+{
+    private static final Metrics INSTANCE = new Metrics();
+
+    public interface Gauge
+    {
+        long getValue();
+    }
+
+    public static class Counter
+    {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment()
+        {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta)
+        {
+            value.addAndGet(delta);
+        }
+
+        public long get()
+        {
+            return value.get();
+        }
+    }
+
+    public interface MetricsMXBean
+    {
+        Map<String, Long> getCounters();
+        Map<String, Long> getGauges();
+        Map<String, Long> getLatencyP99Nanos();
+        String getMetricsJSON();
+    }
+
+    private final ConcurrentSkipListMap<String, Counter> counters;
+    private final ConcurrentSkipListMap<String, Gauge> gauges;
+    private final ConcurrentSkipListMap<String, LatencyHistogram> histograms;
+    private final long startTime;
+    private boolean registeredWithJMX;
+
+    private Metrics()
+    {
+        counters = new ConcurrentSkipListMap<String, Counter>();
+        gauges = new ConcurrentSkipListMap<String, Gauge>();
+        histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+        startTime = System.currentTimeMillis();
+    }
+
+    public static Metrics get()
+    {
+        return INSTANCE;
+    }
+
+    /** The counter with the given name, created on first use. */
+    public Counter counter(String name)
+    {
+        Counter counter = counters.get(name);
+        if (counter == null)
+        {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+            {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /** The histogram with the given name, created on first use. */
+    public LatencyHistogram histogram(String name)
+    {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null)
+        {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+            {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /** Registers or replaces a gauge; it is read whenever the metrics are. */
+    public void gauge(String name, Gauge gauge)
+    {
+        gauges.put(name, gauge);
+    }
+
+    /** Removes the gauge, unless it has been replaced by another one since. */
+    public void removeGauge(String name, Gauge gauge)
+    {
+        gauges.remove(name, gauge);
+    }
+
+    /** Makes the registry visible to JMX clients such as jconsole; does nothing on the second call. */
+    public synchronized void registerWithJMX() throws Exception
+    {
+        if (registeredWithJMX)
+        {
+            return;
+        }
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMXBean() {
+            public Map<String, Long> getCounters()
+            {
+                Map<String, Long> values = new ConcurrentSkipListMap<String, Long>();
+                for (Map.Entry<String, Counter> entry : counters.entrySet())
+                {
+                    values.put(entry.getKey(), entry.getValue().get());
+                }
+                return values;
+            }
+
+            public Map<String, Long> getGauges()
+            {
+                Map<String, Long> values = new ConcurrentSkipListMap<String, Long>();
+                for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+                {
+                    values.put(entry.getKey(), readGauge(entry.getValue()));
+                }
+                return values;
+            }
+
+            public Map<String, Long> getLatencyP99Nanos()
+            {
+                Map<String, Long> values = new ConcurrentSkipListMap<String, Long>();
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet())
+                {
+                    values.put(entry.getKey(), entry.getValue().getPercentile(0.99));
+                }
+                return values;
+            }
+
+            public String getMetricsJSON()
+            {
+                return toJSON();
+            }
+        }, new ObjectName("com.hive.bitcoinkit:type=Metrics"));
+        registeredWithJMX = true;
+    }
+
+    public String toJSON()
+    {
+        double seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000.0);
+
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{ \"uptimeSeconds\": ").append((long) seconds);
+
+        json.append(", \"counters\": {");
+        String separator = " ";
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+        {
+            long value = entry.getValue().get();
+            json.append(separator).append("\"").append(entry.getKey()).append("\": { \"count\": ").append(value)
+                .append(", \"perSecond\": ").append(value / seconds).append(" }");
+            separator = ", ";
+        }
+        json.append(" }");
+
+        json.append(", \"gauges\": {");
+        separator = " ";
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+        {
+            json.append(separator).append("\"").append(entry.getKey()).append("\": ")
+                .append(readGauge(entry.getValue()));
+            separator = ", ";
+        }
+        json.append(" }");
+
+        json.append(", \"latencies\": {");
+        separator = " ";
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet())
+        {
+            json.append(separator).append("\"").append(entry.getKey()).append("\": ")
+                .append(entry.getValue().toJSON());
+            separator = ", ";
+        }
+        json.append(" } }");
+
+        return json.toString();
+    }
+
+    private static long readGauge(Gauge gauge)
+    {
+        try
+        {
+            return gauge.getValue();
+        }
+        catch (RuntimeException e)
+        {
+            // a gauge over something that is not set up (yet)
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.hive.bitcoinkit;
+
+import java.util.LinkedHashSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the events that are passed on to the app through native callbacks and delivers them from a thread of
+ * its own, so the wallet and peer threads never wait for the app. Events that arrive within the coalescing window
+ * are merged: each changed transaction is reported once, in a single upcall for the whole set, wallet and balance
+ * changes once, and synchronization updates as one update carrying the latest value of each field (negative values
+ * mean "no change" there, as for the native callback).
+ */
+public class NativeEventDispatcher
+{
+    private static final Logger log = LoggerFactory.getLogger(NativeEventDispatcher.class);
+
+    public interface Target
+    {
+        void transactionsChanged(String[] txids);
+        void walletChanged();
+        void balanceChanged();
+        void synchronizationUpdate(double progress, long blockCount, long blockHeight);
+    }
+
+    private final Target target;
+    private final Thread thread;
+    private final long startTime;
+
+    private LinkedHashSet<String> changedTransactions;
+    private boolean walletChanged;
+    private boolean balanceChanged;
+    private boolean synchronizationChanged;
+    private double syncProgress;
+    private long syncBlockCount;
+    private long syncBlockHeight;
+    private long windowMillis;
+
+    private long eventCount;
+    private long upcallCount;
+    private long batchCount;
+    private long transactionUpcallCount;
+    private long transactionsDelivered;
+    private int largestTransactionBatch;
+
+    public NativeEventDispatcher(Target target, long windowMillis)
+    {
+        this.target = target;
+        this.windowMillis = windowMillis;
+        this.changedTransactions = new LinkedHashSet<String>();
+        resetSynchronization();
+
+        startTime = System.currentTimeMillis();
+        thread = new Thread(new Runnable() {
+            public void run()
+            {
+                dispatchLoop();
+            }
+        }, "Native event dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** How long events are collected after the first one before they are delivered; 0 delivers right away. */
+    public synchronized void setWindowMillis(long windowMillis)
+    {
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+
+    public synchronized long getWindowMillis()
+    {
+        return windowMillis;
+    }
+
+    public synchronized void transactionChanged(String txid)
+    {
+        changedTransactions.add(txid);
+        eventAdded();
+    }
+
+    public synchronized void walletChanged()
+    {
+        walletChanged = true;
+        eventAdded();
+    }
+
+    public synchronized void balanceChanged()
+    {
+        balanceChanged = true;
+        eventAdded();
+    }
+
+    public synchronized void synchronizationUpdate(double progress, long blockCount, long blockHeight)
+    {
+        if (progress >= 0)
+        {
+            syncProgress = progress;
+        }
+        if (blockCount > 0)
+        {
+            syncBlockCount = blockCount;
+        }
+        if (blockHeight > 0)
+        {
+            syncBlockHeight = blockHeight;
+        }
+        synchronizationChanged = true;
+        eventAdded();
+    }
+
+    public synchronized String getStatsJSON()
+    {
+        long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+
+        return "{ \"events\": " + eventCount
+            + ", \"upcalls\": " + upcallCount
+            + ", \"upcallsPerSecond\": " + ((double) upcallCount / seconds)
+            + ", \"batches\": " + batchCount
+            + ", \"avgEventsPerBatch\": " + ((batchCount > 0) ? (double) eventCount / batchCount : 0)
+            + ", \"avgTransactionBatch\": "
+                + ((transactionUpcallCount > 0) ? (double) transactionsDelivered / transactionUpcallCount : 0)
+            + ", \"largestTransactionBatch\": " + largestTransactionBatch
+            + ", \"windowMillis\": " + windowMillis
+            + " }";
+    }
+
+    private void eventAdded()
+    {
+        eventCount++;
+        notifyAll();
+    }
+
+    private boolean hasEvents()
+    {
+        return !changedTransactions.isEmpty() || walletChanged || balanceChanged || synchronizationChanged;
+    }
+
+    private void resetSynchronization()
+    {
+        synchronizationChanged = false;
+        syncProgress = -1;
+        syncBlockCount = -1;
+        syncBlockHeight = -1;
+    }
+
+    private void dispatchLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                long window;
+                synchronized (this)
+                {
+                    while (!hasEvents())
+                    {
+                        wait();
+                    }
+                    window = windowMillis;
+                }
+
+                if (window > 0)
+                {
+                    Thread.sleep(window);
+                }
+                deliver();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // the dispatcher lives as long as the process
+        }
+    }
+
+    private void deliver()
+    {
+        String[] txids;
+        boolean deliverWallet;
+        boolean deliverBalance;
+        boolean deliverSynchronization;
+        double progress;
+        long blockCount;
+        long blockHeight;
+
+        synchronized (this)
+        {
+            txids = changedTransactions.toArray(new String[changedTransactions.size()]);
+            changedTransactions = new LinkedHashSet<String>();
+            deliverWallet = walletChanged;
+            deliverBalance = balanceChanged;
+            walletChanged = false;
+            balanceChanged = false;
+            deliverSynchronization = synchronizationChanged;
+            progress = syncProgress;
+            blockCount = syncBlockCount;
+            blockHeight = syncBlockHeight;
+            resetSynchronization();
+
+            batchCount++;
+            upcallCount += (txids.length > 0 ? 1 : 0) + (deliverWallet ? 1 : 0) + (deliverBalance ? 1 : 0)
+                           + (deliverSynchronization ? 1 : 0);
+            if (txids.length > 0)
+            {
+                transactionUpcallCount++;
+                transactionsDelivered += txids.length;
+                largestTransactionBatch = Math.max(largestTransactionBatch, txids.length);
+            }
+        }
+
+        // the app sees synchronization progress before the transactions it implies
+        try
+        {
+            if (deliverSynchronization)
+            {
+                target.synchronizationUpdate(progress, blockCount, blockHeight);
+            }
+            if (txids.length > 0)
+            {
+                target.transactionsChanged(txids);
+            }
+            if (deliverWallet)
+            {
+                target.walletChanged();
+            }
+            if (deliverBalance)
+            {
+                target.balanceChanged();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Delivering events failed", e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Fixed-layout binary alternative to the JSON transaction list, meant to be copied across JNI with a single
+ * GetByteArrayRegion and read in place without any parsing. All integers are big-endian.
+ *
+ * <pre>
+ * header  (12 bytes)  int version, int record count, int string table offset
+ * record  (60 bytes)  byte[32] txid, long amount (satoshis), long time (ms since epoch),
+ *                     byte confidence, byte detail, short reserved,
+ *                     int address offset (-1 if none), int address length
+ * string table        US-ASCII addresses, referenced by offsets relative to the table start
+ * </pre>
+ *
+ * The detail byte uses the TransactionView.DETAIL_ constants. Use PackedTransactionReader to read the result.
+ */
+public class PackedTransactionEncoder
+{
+    public static final int FORMAT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 12;
+    public static final int RECORD_SIZE = 60;
+
+    public static final int OFFSET_TXID = 0;
+    public static final int OFFSET_AMOUNT = 32;
+    public static final int OFFSET_TIME = 40;
+    public static final int OFFSET_CONFIDENCE = 48;
+    public static final int OFFSET_DETAIL = 49;
+    public static final int OFFSET_ADDRESS_OFFSET = 52;
+    public static final int OFFSET_ADDRESS_LENGTH = 56;
+
+    public static final byte CONFIDENCE_BUILDING = 0;
+    public static final byte CONFIDENCE_PENDING = 1;
+    /** The transaction's value couldn't be computed; only the txid is set (null in the JSON form). */
+    public static final byte CONFIDENCE_UNREADABLE = -1;
+
+    /**
+     * Encodes the views in order. hashes holds the hash of every transaction so that entries whose view is
+     * null still carry their txid.
+     */
+    public static byte[] encode(List<Sha256Hash> hashes, List<TransactionView> views)
+    {
+        int count = views.size();
+        int stringTableSize = 0;
+        for (TransactionView view : views)
+        {
+            if (view != null && view.getDetailAddress() != null)
+            {
+                stringTableSize += view.getDetailAddress().length();
+            }
+        }
+
+        int stringTableOffset = HEADER_SIZE + count * RECORD_SIZE;
+        byte[] packed = new byte[stringTableOffset + stringTableSize];
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(count);
+        buffer.putInt(stringTableOffset);
+
+        int stringOffset = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            TransactionView view = views.get(i);
+
+            System.arraycopy(hashes.get(i).getBytes(), 0, packed, record + OFFSET_TXID, 32);
+
+            if (view == null)
+            {
+                packed[record + OFFSET_CONFIDENCE] = CONFIDENCE_UNREADABLE;
+                buffer.putInt(record + OFFSET_ADDRESS_OFFSET, -1);
+                continue;
+            }
+
+            buffer.putLong(record + OFFSET_AMOUNT, view.getValue().longValue());
+            buffer.putLong(record + OFFSET_TIME, view.getUpdateTime().getTime());
+            packed[record + OFFSET_CONFIDENCE] = view.isPending() ? CONFIDENCE_PENDING : CONFIDENCE_BUILDING;
+            packed[record + OFFSET_DETAIL] = (byte) view.getDetail();
+
+            String address = view.getDetailAddress();
+            if (address == null)
+            {
+                buffer.putInt(record + OFFSET_ADDRESS_OFFSET, -1);
+                continue;
+            }
+
+            int length = address.length();
+            buffer.putInt(record + OFFSET_ADDRESS_OFFSET, stringOffset);
+            buffer.putInt(record + OFFSET_ADDRESS_LENGTH, length);
+
+            // base58 addresses are plain ASCII
+            int position = stringTableOffset + stringOffset;
+            for (int c = 0; c < length; c++)
+            {
+                packed[position + c] = (byte) address.charAt(c);
+            }
+            stringOffset += length;
+        }
+
+        return packed;
+    }
+}
@@ -0,0 +1,99 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+
+import static com.hive.bitcoinkit.PackedTransactionEncoder.*;
+
+/**
+ * Reads the output of PackedTransactionEncoder in place. Mirrors what the native side does with the same bytes.
+ */
+public class PackedTransactionReader
+{
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int stringTableOffset;
+
+    public PackedTransactionReader(byte[] packed)
+    {
+        buffer = ByteBuffer.wrap(packed);
+
+        int version = buffer.getInt(0);
+        if (version != FORMAT_VERSION)
+        {
+            throw new IllegalArgumentException("Unsupported packed transaction format version " + version);
+        }
+
+        count = buffer.getInt(4);
+        stringTableOffset = buffer.getInt(8);
+
+        if (stringTableOffset != HEADER_SIZE + count * RECORD_SIZE || stringTableOffset > packed.length)
+        {
+            throw new IllegalArgumentException("Corrupt packed transaction data (" + count + " records, "
+                                               + packed.length + " bytes)");
+        }
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public Sha256Hash getHash(int index)
+    {
+        byte[] hash = new byte[32];
+        System.arraycopy(buffer.array(), record(index) + OFFSET_TXID, hash, 0, 32);
+        return new Sha256Hash(hash);
+    }
+
+    public long getAmount(int index)
+    {
+        return buffer.getLong(record(index) + OFFSET_AMOUNT);
+    }
+
+    public long getTime(int index)
+    {
+        return buffer.getLong(record(index) + OFFSET_TIME);
+    }
+
+    /** One of the CONFIDENCE_ constants of PackedTransactionEncoder. */
+    public byte getConfidence(int index)
+    {
+        return buffer.get(record(index) + OFFSET_CONFIDENCE);
+    }
+
+    /** One of the TransactionView.DETAIL_ constants. */
+    public int getDetail(int index)
+    {
+        return buffer.get(record(index) + OFFSET_DETAIL);
+    }
+
+    /** The counterparty address, or null if there is none. */
+    public String getAddress(int index)
+    {
+        int record = record(index);
+        int offset = buffer.getInt(record + OFFSET_ADDRESS_OFFSET);
+        if (offset < 0)
+        {
+            return null;
+        }
+
+        int length = buffer.getInt(record + OFFSET_ADDRESS_LENGTH);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+        {
+            chars[i] = (char) buffer.get(stringTableOffset + offset + i);
+        }
+        return new String(chars);
+    }
+
+    private int record(int index)
+    {
+        if (index < 0 || index >= count)
+        {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+        }
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,202 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Wallet that can change its encryption key without passing through a decrypted state. Wallet.decrypt() followed
+ * by Wallet.encrypt() converts the keys one by one while holding the wallet lock (twice), and in between the
+ * wallet is unencrypted and may be saved that way.
+ *
+ * reencrypt() does the expensive part, decrypting every key and encrypting and verifying it again, on all cores
+ * without holding the wallet lock. It then swaps the whole key set in a single hold of the lock, so other threads
+ * and saves only ever see the old or the new keys. If anything fails the wallet is left untouched.
+ */
+public class RekeyableWallet extends Wallet
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int KEYS_PER_TASK = 32;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /*
+     * bitcoinj 0.11 has no way to replace the key chain together with its crypter; Wallet.encrypt() and decrypt()
+     * assign these private fields themselves. They are looked up once here and only ever written by setKeys(), so
+     * the swap is two stores under the wallet lock. Null if this bitcoinj has different fields.
+     */
+    private static final Field keychainField = walletField("keychain");
+    private static final Field keyCrypterField = walletField("keyCrypter");
+
+    public RekeyableWallet(NetworkParameters params)
+    {
+        super(params);
+    }
+
+    /**
+     * Encrypts all keys with the new key. oldAesKey is the current key for an encrypted wallet, or null if the
+     * wallet is not encrypted. Throws KeyCrypterException if a key could not be converted.
+     */
+    public void reencrypt(KeyParameter oldAesKey, KeyCrypter newKeyCrypter, KeyParameter newAesKey)
+        throws KeyCrypterException
+    {
+        if (keychainField == null || keyCrypterField == null)
+        {
+            throw new KeyCrypterException("This version of bitcoinj does not allow swapping the wallet's keys");
+        }
+
+        KeyCrypter oldKeyCrypter = getKeyCrypter();
+        List<ECKey> oldKeys = getKeys();
+        List<ECKey> newKeys = convertInParallel(oldKeys, oldKeyCrypter, oldAesKey, newKeyCrypter, newAesKey);
+
+        lock.lock();
+        try
+        {
+            // keys may have been added while we were converting
+            List<ECKey> currentKeys = getKeys();
+            if (!currentKeys.subList(0, Math.min(oldKeys.size(), currentKeys.size())).equals(oldKeys))
+            {
+                throw new KeyCrypterException("The wallet's keys changed while they were being re-encrypted");
+            }
+            List<ECKey> addedKeys = currentKeys.subList(oldKeys.size(), currentKeys.size());
+            oldKeys = currentKeys;
+            newKeys.addAll(convert(addedKeys, oldKeyCrypter, oldAesKey, newKeyCrypter, newAesKey));
+
+            setKeys(newKeys, newKeyCrypter);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        // same as Wallet.encrypt, don't leave unencrypted copies of the keys behind
+        for (ECKey key : oldKeys)
+        {
+            if (!key.isEncrypted())
+            {
+                key.clearPrivateKey();
+            }
+        }
+    }
+
+    /** Replaces the key chain and its crypter, or leaves both alone if that fails. Called with the lock held. */
+    private void setKeys(List<ECKey> keys, KeyCrypter keyCrypter)
+    {
+        try
+        {
+            Object oldKeychain = keychainField.get(this);
+            keychainField.set(this, new ArrayList<ECKey>(keys));
+            try
+            {
+                keyCrypterField.set(this, keyCrypter);
+            }
+            catch (IllegalAccessException e)
+            {
+                keychainField.set(this, oldKeychain);
+                throw e;
+            }
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new KeyCrypterException("Could not swap the wallet's keys", e);
+        }
+    }
+
+    private static Field walletField(String name)
+    {
+        try
+        {
+            Field field = Wallet.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static List<ECKey> convertInParallel(List<ECKey> keys, final KeyCrypter oldKeyCrypter,
+                                                 final KeyParameter oldAesKey, final KeyCrypter newKeyCrypter,
+                                                 final KeyParameter newAesKey)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("Wallet re-encryption %d").setDaemon(true).build());
+        try
+        {
+            List<Callable<List<ECKey>>> tasks = new ArrayList<Callable<List<ECKey>>>();
+            for (int from = 0; from < keys.size(); from += KEYS_PER_TASK)
+            {
+                final List<ECKey> chunk = keys.subList(from, Math.min(from + KEYS_PER_TASK, keys.size()));
+                tasks.add(new Callable<List<ECKey>>() {
+                    public List<ECKey> call()
+                    {
+                        return convert(chunk, oldKeyCrypter, oldAesKey, newKeyCrypter, newAesKey);
+                    }
+                });
+            }
+
+            List<ECKey> converted = new ArrayList<ECKey>(keys.size());
+            for (Future<List<ECKey>> result : executor.invokeAll(tasks))
+            {
+                converted.addAll(result.get());
+            }
+            return converted;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new KeyCrypterException("Interrupted while re-encrypting the wallet", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof KeyCrypterException)
+            {
+                throw (KeyCrypterException) e.getCause();
+            }
+            throw new KeyCrypterException("Could not re-encrypt the wallet", e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<ECKey> convert(List<ECKey> keys, KeyCrypter oldKeyCrypter, KeyParameter oldAesKey,
+                                       KeyCrypter newKeyCrypter, KeyParameter newAesKey)
+    {
+        List<ECKey> converted = new ArrayList<ECKey>(keys.size());
+        for (ECKey key : keys)
+        {
+            ECKey plainKey = key.isEncrypted() ? key.decrypt(oldKeyCrypter, oldAesKey) : key;
+
+            ECKey encryptedKey = plainKey.encrypt(newKeyCrypter, newAesKey);
+            if (!ECKey.encryptionIsReversible(plainKey, encryptedKey, newKeyCrypter, newAesKey))
+            {
+                throw new KeyCrypterException("The key " + key + " cannot be decrypted after encryption");
+            }
+            encryptedKey.setCreationTimeSeconds(key.getCreationTimeSeconds());
+            converted.add(encryptedKey);
+
+            if (plainKey != key)
+            {
+                plainKey.clearPrivateKey();
+            }
+        }
+        return converted;
+    }
+}
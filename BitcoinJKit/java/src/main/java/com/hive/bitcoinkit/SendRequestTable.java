@@ -0,0 +1,248 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The send requests that are being prepared, committed or broadcast, by request id. Every request carries its own
+ * state, so any number of sends can be in flight and a broadcast callback only ever touches its own request.
+ *
+ * The number of requests being prepared or committed is bounded; a request frees its slot once it is broadcast.
+ * Prepared requests that are neither committed nor cancelled expire, so their slot and inputs are not held forever.
+ * Finished (confirmed or failed) requests are kept for a while so their state can still be read, the oldest are
+ * dropped first.
+ */
+public class SendRequestTable
+{
+    public enum State
+    {
+        /** Signed and holding its inputs, not in the wallet yet. */
+        CREATED,
+        /** Committed to the wallet, being broadcast. */
+        COMMITTED,
+        /** Announced by enough peers. */
+        BROADCAST,
+        /** Included in a block. */
+        CONFIRMED,
+        /** Cancelled, could not be committed or broadcast, or double spent. */
+        FAILED
+    }
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final int RETAINED_FINISHED = 64;
+    private static final long DEFAULT_EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    private final ConcurrentHashMap<Long, PendingSend> requests;
+    private final ConcurrentHashMap<Sha256Hash, PendingSend> requestsByTx;
+    private final ConcurrentLinkedQueue<PendingSend> finished;
+    private final AtomicLong nextId;
+    private final AtomicInteger inFlight;
+    private volatile int maxInFlight;
+    private volatile long expiryMillis;
+
+    public SendRequestTable()
+    {
+        requests = new ConcurrentHashMap<Long, PendingSend>();
+        requestsByTx = new ConcurrentHashMap<Sha256Hash, PendingSend>();
+        finished = new ConcurrentLinkedQueue<PendingSend>();
+        nextId = new AtomicLong(1);
+        inFlight = new AtomicInteger();
+        maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        expiryMillis = DEFAULT_EXPIRY_MILLIS;
+    }
+
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    public int getInFlightCount()
+    {
+        return inFlight.get();
+    }
+
+    /** How long a prepared request may wait to be committed, 0 for ever. */
+    public void setExpiryMillis(long expiryMillis)
+    {
+        this.expiryMillis = expiryMillis;
+    }
+
+    public long getExpiryMillis()
+    {
+        return expiryMillis;
+    }
+
+    /** Fails the prepared requests that have waited too long and returns them, for their inputs to be released. */
+    public List<PendingSend> expire()
+    {
+        List<PendingSend> expired = new ArrayList<PendingSend>();
+        long expiry = expiryMillis;
+        if (expiry <= 0)
+        {
+            return expired;
+        }
+
+        long now = System.currentTimeMillis();
+        for (PendingSend send : requests.values())
+        {
+            if (now - send.created >= expiry && transition(send, State.CREATED, State.FAILED))
+            {
+                expired.add(send);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Registers a completed (signed) request whose inputs are reserved. Throws IllegalStateException if the
+     * maximum number of requests being prepared or committed is reached.
+     */
+    public PendingSend add(Wallet.SendRequest request, List<TransactionOutput> reservedOutputs)
+    {
+        while (true)
+        {
+            int current = inFlight.get();
+            if (current >= maxInFlight)
+            {
+                throw new IllegalStateException("Too many send requests in flight (" + current + ")");
+            }
+            if (inFlight.compareAndSet(current, current + 1))
+            {
+                break;
+            }
+        }
+
+        PendingSend send = new PendingSend(nextId.getAndIncrement(), request, reservedOutputs);
+        requests.put(send.id, send);
+        requestsByTx.put(request.tx.getHash(), send);
+        return send;
+    }
+
+    /** The request with the given id, or null if it is unknown or was dropped after finishing. */
+    public PendingSend get(long id)
+    {
+        return requests.get(id);
+    }
+
+    /** The unfinished request that sends the given transaction, or null. */
+    public PendingSend getByTransaction(Sha256Hash hash)
+    {
+        return requestsByTx.get(hash);
+    }
+
+    /**
+     * Moves the request from one state to another, unless another thread moved it first. Returns whether the
+     * transition happened.
+     */
+    public boolean transition(PendingSend send, State from, State to)
+    {
+        if (!send.state.compareAndSet(from, to))
+        {
+            return false;
+        }
+
+        if (holdsSlot(from) && !holdsSlot(to))
+        {
+            inFlight.decrementAndGet();
+        }
+
+        if (to == State.CONFIRMED || to == State.FAILED)
+        {
+            finish(send);
+        }
+        return true;
+    }
+
+    /** All unfinished requests, to be failed when the wallet goes away. */
+    public List<PendingSend> getUnfinished()
+    {
+        List<PendingSend> unfinished = new ArrayList<PendingSend>();
+        for (PendingSend send : requests.values())
+        {
+            State state = send.getState();
+            if (state != State.CONFIRMED && state != State.FAILED)
+            {
+                unfinished.add(send);
+            }
+        }
+        return unfinished;
+    }
+
+    private static boolean holdsSlot(State state)
+    {
+        return state == State.CREATED || state == State.COMMITTED;
+    }
+
+    private void finish(PendingSend send)
+    {
+        requestsByTx.remove(send.request.tx.getHash(), send);
+
+        finished.add(send);
+        while (finished.size() > RETAINED_FINISHED)
+        {
+            PendingSend oldest = finished.poll();
+            if (oldest != null)
+            {
+                requests.remove(oldest.id, oldest);
+            }
+        }
+    }
+
+    public static class PendingSend
+    {
+        private final long id;
+        private final Wallet.SendRequest request;
+        private final List<TransactionOutput> reservedOutputs;
+        private final AtomicReference<State> state;
+        private final long created;
+
+        PendingSend(long id, Wallet.SendRequest request, List<TransactionOutput> reservedOutputs)
+        {
+            this.id = id;
+            this.request = request;
+            this.reservedOutputs = reservedOutputs;
+            this.state = new AtomicReference<State>(State.CREATED);
+            this.created = System.currentTimeMillis();
+        }
+
+        public long getId()
+        {
+            return id;
+        }
+
+        public State getState()
+        {
+            return state.get();
+        }
+
+        public Transaction getTransaction()
+        {
+            return request.tx;
+        }
+
+        public String getFee()
+        {
+            return request.fee.toString();
+        }
+
+        public List<TransactionOutput> getReservedOutputs()
+        {
+            return reservedOutputs;
+        }
+    }
+}
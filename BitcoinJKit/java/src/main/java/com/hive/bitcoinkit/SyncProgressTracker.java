@@ -0,0 +1,280 @@
+package com.hive.bitcoinkit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the block chain download. The peer threads only bump counters; a timer samples them at a fixed
+ * interval, computes blocks, bytes and filtered transactions per second over a sliding window of samples plus
+ * the time left, and reports a Snapshot to the listener. Reporting is therefore steady however the blocks arrive,
+ * and the chain is not queried per block.
+ *
+ * Up to the fast catch-up time only headers are downloaded, which goes much faster than the filtered blocks after
+ * it, so the two phases are timed separately.
+ */
+public class SyncProgressTracker
+{
+    public interface Listener
+    {
+        void onSyncProgress(Snapshot snapshot);
+    }
+
+    /** Height of the chain when the counters were sampled, asked once per sample. */
+    public interface ChainHeight
+    {
+        long get();
+    }
+
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_WINDOW_SAMPLES = 30;
+
+    private final Listener listener;
+    private final ChainHeight chainHeight;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong blocks;
+    private final AtomicLong bytes;
+    private final AtomicLong transactions;
+    private final AtomicLong headers;
+
+    private volatile long blocksLeft;
+    private long blocksToDownload;
+    private long startTime;
+    private volatile long firstBlockTime;
+    private volatile long fastCatchupTime;
+    private long intervalMillis;
+    private int windowSamples;
+    private ArrayDeque<Sample> window;
+    private ScheduledFuture<?> sampling;
+    private volatile Snapshot snapshot;
+
+    public SyncProgressTracker(Listener listener, ChainHeight chainHeight)
+    {
+        this.listener = listener;
+        this.chainHeight = chainHeight;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Sync progress").setDaemon(true).build());
+        this.blocks = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.transactions = new AtomicLong();
+        this.headers = new AtomicLong();
+        this.intervalMillis = DEFAULT_INTERVAL_MILLIS;
+        this.windowSamples = DEFAULT_WINDOW_SAMPLES;
+        this.window = new ArrayDeque<Sample>();
+        this.snapshot = new Snapshot();
+    }
+
+    /** Sampling interval and the number of samples the rates are averaged over; applies from the next start(). */
+    public synchronized void setSampling(long intervalMillis, int windowSamples)
+    {
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.windowSamples = Math.max(2, windowSamples);
+    }
+
+    /** A download of the given number of blocks starts, or restarts with another peer. */
+    public synchronized void start(long blocksToDownload)
+    {
+        stopSampling();
+
+        this.blocksToDownload = blocksToDownload;
+        this.blocksLeft = blocksToDownload;
+        blocks.set(0);
+        bytes.set(0);
+        transactions.set(0);
+        headers.set(0);
+        startTime = System.currentTimeMillis();
+        firstBlockTime = 0;
+        window.clear();
+        window.add(new Sample(startTime, 0, 0, 0, 0));
+
+        sampling = timer.scheduleAtFixedRate(new Runnable() {
+            public void run()
+            {
+                sample();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Blocks before this time, in seconds, are downloaded as headers only; reported with each snapshot. */
+    public void setFastCatchupTime(long fastCatchupTime)
+    {
+        this.fastCatchupTime = fastCatchupTime;
+    }
+
+    /**
+     * A block of the given message size and time (in seconds) arrived; only its header if it is older than the
+     * fast catch-up time. When it was the last one the final snapshot is reported.
+     */
+    public void blockDownloaded(long blocksLeft, long size, long blockTime)
+    {
+        if (blockTime < fastCatchupTime)
+        {
+            headers.incrementAndGet();
+        }
+        else if (firstBlockTime == 0)
+        {
+            // only the download peer's thread gets here
+            firstBlockTime = System.currentTimeMillis();
+        }
+        blocks.incrementAndGet();
+        bytes.addAndGet(size);
+        this.blocksLeft = blocksLeft;
+
+        if (blocksLeft == 0)
+        {
+            synchronized (this)
+            {
+                if (sampling != null)
+                {
+                    stopSampling();
+                    sample();
+                }
+            }
+        }
+    }
+
+    /** A transaction matching the wallet's filter arrived during the download. */
+    public void transactionReceived(long size)
+    {
+        transactions.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    public Snapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /** The download ended without finishing, e.g. because the peers were shut down; start() samples again. */
+    public synchronized void stop()
+    {
+        stopSampling();
+    }
+
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            stopSampling();
+        }
+        timer.shutdownNow();
+    }
+
+    private void stopSampling()
+    {
+        if (sampling != null)
+        {
+            sampling.cancel(false);
+            sampling = null;
+        }
+    }
+
+    private void sample()
+    {
+        Snapshot current;
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            Sample latest = new Sample(now, blocks.get(), bytes.get(), transactions.get(), headers.get());
+            window.add(latest);
+            while (window.size() > windowSamples)
+            {
+                window.poll();
+            }
+            Sample oldest = window.peek();
+
+            current = new Snapshot();
+            long left = blocksLeft;
+            double seconds = (latest.time - oldest.time) / 1000.0;
+            if (seconds > 0)
+            {
+                current.blocksPerSecond = (latest.blocks - oldest.blocks) / seconds;
+                current.bytesPerSecond = (latest.bytes - oldest.bytes) / seconds;
+                current.transactionsPerSecond = (latest.transactions - oldest.transactions) / seconds;
+            }
+            current.progress = (blocksToDownload > 0) ? (double) (blocksToDownload - left) / blocksToDownload : 1.0;
+            current.blocksDownloaded = latest.blocks;
+            current.headersDownloaded = latest.headers;
+            long blockStart = firstBlockTime;
+            current.headerSeconds = (((blockStart != 0) ? blockStart : now) - startTime) / 1000;
+            current.blockSeconds = (blockStart != 0) ? (now - blockStart) / 1000 : 0;
+            current.fastCatchupTime = fastCatchupTime;
+            current.blocksLeft = left;
+            current.elapsedSeconds = (now - startTime) / 1000;
+            // what is left after the catch-up time are full blocks, which come much slower than the headers before
+            double etaRate = current.blocksPerSecond;
+            if (blockStart != 0)
+            {
+                double blockPhaseSeconds = (latest.time - Math.max(oldest.time, blockStart)) / 1000.0;
+                long fullBlocks = (latest.blocks - latest.headers) - (oldest.blocks - oldest.headers);
+                etaRate = (blockPhaseSeconds > 0) ? fullBlocks / blockPhaseSeconds : 0;
+            }
+            current.etaSeconds = (left == 0) ? 0 : (etaRate > 0) ? (long) Math.ceil(left / etaRate) : -1;
+            current.chainHeight = chainHeight.get();
+            snapshot = current;
+        }
+
+        listener.onSyncProgress(current);
+    }
+
+    private static class Sample
+    {
+        final long time;
+        final long blocks;
+        final long bytes;
+        final long transactions;
+        final long headers;
+
+        Sample(long time, long blocks, long bytes, long transactions, long headers)
+        {
+            this.time = time;
+            this.blocks = blocks;
+            this.bytes = bytes;
+            this.transactions = transactions;
+            this.headers = headers;
+        }
+    }
+
+    public static class Snapshot
+    {
+        public double progress;
+        public long blocksDownloaded;
+        /** Of the blocks downloaded, those that were only headers. */
+        public long headersDownloaded;
+        public long blocksLeft;
+        public long chainHeight = -1;
+        public double blocksPerSecond;
+        public double bytesPerSecond;
+        public double transactionsPerSecond;
+        /** Seconds until the download is done at the current rate, -1 if nothing was downloaded recently. */
+        public long etaSeconds = -1;
+        public long elapsedSeconds;
+        /** Seconds spent on headers before the first full block, and on full blocks since. */
+        public long headerSeconds;
+        public long blockSeconds;
+        public long fastCatchupTime;
+
+        public String toJSON()
+        {
+            return "{ \"progress\": " + progress
+                + ", \"blocksDownloaded\": " + blocksDownloaded
+                + ", \"headersDownloaded\": " + headersDownloaded
+                + ", \"blocksLeft\": " + blocksLeft
+                + ", \"chainHeight\": " + chainHeight
+                + ", \"blocksPerSecond\": " + blocksPerSecond
+                + ", \"bytesPerSecond\": " + bytesPerSecond
+                + ", \"filteredTransactionsPerSecond\": " + transactionsPerSecond
+                + ", \"etaSeconds\": " + etaSeconds
+                + ", \"elapsedSeconds\": " + elapsedSeconds
+                + ", \"headerSeconds\": " + headerSeconds
+                + ", \"blockSeconds\": " + blockSeconds
+                + ", \"fastCatchupTime\": " + fastCatchupTime
+                + " }";
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Wallet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens to the confidence of transactions until they are buried deep enough, forwarding every change to the
+ * given listener. Transactions are tracked by hash in a concurrent map, so tracking and untracking from any thread
+ * is a single map operation plus adding or removing one listener on that transaction.
+ *
+ * The wallet does not announce the transactions it already knew about again after a restart, so attach() starts
+ * tracking all of its pending transactions.
+ */
+public class TransactionConfidenceTracker implements TransactionConfidence.Listener
+{
+    private static final Logger log = LoggerFactory.getLogger(TransactionConfidenceTracker.class);
+
+    private final TransactionConfidence.Listener listener;
+    private final ConcurrentHashMap<Sha256Hash, Transaction> tracked;
+    private volatile int untrackDepth;
+
+    public TransactionConfidenceTracker(TransactionConfidence.Listener listener)
+    {
+        this.listener = listener;
+        this.tracked = new ConcurrentHashMap<Sha256Hash, Transaction>();
+        this.untrackDepth = 1;
+    }
+
+    /** Number of blocks a transaction needs to be buried under before it is no longer tracked, 1 by default. */
+    public void setUntrackDepth(int depth)
+    {
+        untrackDepth = Math.max(1, depth);
+    }
+
+    public int getUntrackDepth()
+    {
+        return untrackDepth;
+    }
+
+    /** Stops tracking the previous wallet's transactions and tracks the pending ones of the given wallet. */
+    public void attach(Wallet wallet)
+    {
+        clear();
+
+        for (Transaction tx : wallet.getPendingTransactions())
+        {
+            track(tx);
+        }
+    }
+
+    public void track(Transaction tx)
+    {
+        if (isDone(tx))
+        {
+            return;
+        }
+
+        if (tracked.putIfAbsent(tx.getHash(), tx) == null)
+        {
+            log.debug("Tracking transaction " + tx.getHashAsString());
+
+            tx.getConfidence().addEventListener(this);
+
+            // it may have been buried between the check above and adding the listener
+            if (isDone(tx))
+            {
+                untrack(tx);
+            }
+        }
+    }
+
+    public void untrack(Transaction tx)
+    {
+        if (tracked.remove(tx.getHash(), tx))
+        {
+            log.debug("Stopped tracking transaction " + tx.getHashAsString());
+
+            tx.getConfidence().removeEventListener(this);
+        }
+    }
+
+    public void clear()
+    {
+        for (Transaction tx : tracked.values())
+        {
+            untrack(tx);
+        }
+    }
+
+    public boolean isTracked(Transaction tx)
+    {
+        return tracked.containsKey(tx.getHash());
+    }
+
+    public int size()
+    {
+        return tracked.size();
+    }
+
+    public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason)
+    {
+        if (isDone(tx))
+        {
+            untrack(tx);
+        }
+
+        listener.onConfidenceChanged(tx, reason);
+    }
+
+    private boolean isDone(Transaction tx)
+    {
+        TransactionConfidence confidence = tx.getConfidence();
+        switch (confidence.getConfidenceType())
+        {
+            case BUILDING:
+                return confidence.getDepthInBlocks() >= untrackDepth;
+            case DEAD:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
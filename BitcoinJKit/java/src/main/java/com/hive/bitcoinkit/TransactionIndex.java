@@ -0,0 +1,235 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Wallet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the wallet's transactions in the same order as Wallet.getTransactionsByTime() (newest first, dead
+ * transactions excluded), but maintained incrementally from wallet events instead of being copied and sorted
+ * on every read. Counting is O(1) and reading a page costs O(page size); in the benchmarks module,
+ * TransactionPagingBenchmark compares page reads with getTransactionsByTime() and BridgeBenchmark measures them
+ * through the bridge.
+ *
+ * If the wallet was loaded lazily, the transactions it has not read yet are indexed by their hash and update time
+ * and are materialized through the LazyWalletFile when a page containing them is read.
+ */
+public class TransactionIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(TransactionIndex.class);
+
+    private final ArrayList<Entry> entries;
+    private final HashMap<Sha256Hash, Entry> entriesByHash;
+    private Wallet wallet;
+    private LazyWalletFile lazyWalletFile;
+
+    public TransactionIndex()
+    {
+        entries = new ArrayList<Entry>();
+        entriesByHash = new HashMap<Sha256Hash, Entry>();
+    }
+
+    /** Sets where the transactions of a lazily loaded wallet come from, or null. Takes effect on rebuild. */
+    public synchronized void setLazyWalletFile(LazyWalletFile lazyWalletFile)
+    {
+        this.lazyWalletFile = lazyWalletFile;
+    }
+
+    /** Drops the current contents and indexes all non-dead transactions of the given wallet. */
+    public synchronized void rebuild(Wallet wallet)
+    {
+        entries.clear();
+        entriesByHash.clear();
+        this.wallet = wallet;
+
+        if (wallet == null)
+        {
+            return;
+        }
+
+        for (Transaction tx : wallet.getTransactions(false))
+        {
+            Entry entry = new Entry(tx);
+            entries.add(entry);
+            entriesByHash.put(entry.hash, entry);
+        }
+
+        if (lazyWalletFile != null)
+        {
+            for (Map.Entry<Sha256Hash, Long> deferred : lazyWalletFile.getDeferredUpdateTimes().entrySet())
+            {
+                if (!entriesByHash.containsKey(deferred.getKey()))
+                {
+                    Entry entry = new Entry(deferred.getKey(), deferred.getValue());
+                    entries.add(entry);
+                    entriesByHash.put(entry.hash, entry);
+                }
+            }
+        }
+
+        Collections.sort(entries);
+    }
+
+    /**
+     * Inserts the transaction, moves it if its update time has changed, or removes it if it has become dead.
+     */
+    public synchronized void update(Transaction tx)
+    {
+        boolean dead = (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD);
+        Entry entry = new Entry(tx);
+        Entry existing = entriesByHash.get(entry.hash);
+
+        if (existing != null)
+        {
+            // most calls are depth changes of a transaction that is already in place
+            if (!dead && existing.updateTime == entry.updateTime)
+            {
+                existing.tx = tx;
+                return;
+            }
+            remove(entry.hash);
+        }
+
+        if (dead)
+        {
+            return;
+        }
+
+        int position = Collections.binarySearch(entries, entry);
+        entries.add(-(position + 1), entry);
+        entriesByHash.put(entry.hash, entry);
+    }
+
+    public synchronized void remove(Sha256Hash hash)
+    {
+        Entry entry = entriesByHash.remove(hash);
+        if (entry != null)
+        {
+            entries.remove(Collections.binarySearch(entries, entry));
+        }
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized Transaction get(int index)
+    {
+        Entry entry = entries.get(index);
+        if (entry.tx == null)
+        {
+            materialize(entries.subList(index, index + 1));
+        }
+        return entry.tx;
+    }
+
+    /** Returns up to count transactions starting at from, or an empty list if from is past the end. */
+    public synchronized List<Transaction> getRange(int from, int count)
+    {
+        int to = (from + count < entries.size()) ? from + count : entries.size();
+        if (from >= to)
+        {
+            return Collections.emptyList();
+        }
+
+        materialize(entries.subList(from, to));
+
+        List<Transaction> range = new ArrayList<Transaction>(to - from);
+        for (int i = from; i < to; i++)
+        {
+            range.add(entries.get(i).tx);
+        }
+        return range;
+    }
+
+    /** Reads the deferred transactions among the given entries into the wallet, in one batch. */
+    private void materialize(List<Entry> range)
+    {
+        List<Sha256Hash> missing = null;
+        for (Entry entry : range)
+        {
+            if (entry.tx == null)
+            {
+                if (missing == null)
+                {
+                    missing = new ArrayList<Sha256Hash>();
+                }
+                missing.add(entry.hash);
+            }
+        }
+
+        if (missing == null || lazyWalletFile == null || wallet == null)
+        {
+            return;
+        }
+
+        try
+        {
+            Map<Sha256Hash, Transaction> transactions = lazyWalletFile.materialize(wallet, missing);
+            for (Entry entry : range)
+            {
+                if (entry.tx == null)
+                {
+                    entry.tx = transactions.get(entry.hash);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("Could not read deferred wallet transactions", e);
+        }
+    }
+
+    /**
+     * Snapshot of the sort key taken when the transaction was indexed, so that an entry can still be found
+     * after the transaction's update time has been changed by the wallet.
+     */
+    private static class Entry implements Comparable<Entry>
+    {
+        Transaction tx; // null until a deferred transaction is materialized
+        final Sha256Hash hash;
+        final long updateTime;
+
+        Entry(Transaction tx)
+        {
+            this.tx = tx;
+            this.hash = tx.getHash();
+            this.updateTime = tx.getUpdateTime().getTime();
+        }
+
+        Entry(Sha256Hash hash, long updateTime)
+        {
+            this.hash = hash;
+            this.updateTime = updateTime;
+        }
+
+        public int compareTo(Entry other)
+        {
+            if (updateTime != other.updateTime)
+            {
+                return (updateTime > other.updateTime) ? -1 : 1;
+            }
+            byte[] bytes = hash.getBytes();
+            byte[] otherBytes = other.hash.getBytes();
+            for (int i = 0; i < bytes.length; i++)
+            {
+                if (bytes[i] != otherBytes[i])
+                {
+                    return (bytes[i] & 0xff) - (otherBytes[i] & 0xff);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.hive.bitcoinkit;
+
+import java.util.List;
+
+/**
+ * Writes transaction views as JSON into a single reusable buffer. The output is byte-for-byte what the
+ * Objective-C side has always parsed, including its spacing and the "time" field in Date.toString() form.
+ * Each view renders itself only once (see TransactionView.toJSON), so cached views are copied, not re-encoded.
+ */
+public class TransactionJSONEncoder
+{
+    // don't keep the buffer of a huge export around forever
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private StringBuilder buffer;
+
+    public TransactionJSONEncoder()
+    {
+        buffer = new StringBuilder(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Encodes a page of transactions as a JSON array. A null view is written as null, as happens when a
+     * transaction's value can't be computed.
+     */
+    public synchronized String encodeList(List<TransactionView> views)
+    {
+        buffer.setLength(0);
+        buffer.append("[\n");
+
+        boolean first = true;
+        for (TransactionView view : views)
+        {
+            if (first)
+            {
+                first = false;
+            }
+            else
+            {
+                buffer.append("\n,");
+            }
+
+            if (view != null)
+            {
+                buffer.append(view.toJSON());
+            }
+            else
+            {
+                buffer.append("null");
+            }
+        }
+
+        buffer.append("]\n");
+        return takeBuffer();
+    }
+
+    public static void appendTransaction(StringBuilder out, TransactionView view)
+    {
+        out.append("{ \"amount\": ").append(view.getValue());
+        out.append(", \"txid\": \"").append(view.getHash()).append('"');
+        out.append(", \"time\": \"").append(view.getUpdateTime()).append('"');
+        out.append(", \"confidence\": \"").append(view.isPending() ? "pending" : "building").append('"');
+        out.append(", \"details\": [");
+
+        switch (view.getDetail())
+        {
+            case TransactionView.DETAIL_RECEIVED:
+                out.append("{ ");
+                if (view.getDetailAddress() != null)
+                {
+                    out.append("\"address\": \"").append(view.getDetailAddress()).append('"');
+                }
+                out.append(" ,\"category\": \"received\" }");
+                break;
+
+            case TransactionView.DETAIL_SENT:
+                out.append("{ ");
+                if (view.getDetailAddress() != null)
+                {
+                    out.append(" \"address\": \"").append(view.getDetailAddress()).append('"');
+                }
+                out.append(" ,\"category\": \"sent\" }");
+                break;
+
+            case TransactionView.DETAIL_UNREADABLE:
+                out.append("{ ");
+                break;
+
+            default:
+                break;
+        }
+
+        out.append("]}");
+    }
+
+    private String takeBuffer()
+    {
+        String result = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY)
+        {
+            buffer = new StringBuilder(INITIAL_CAPACITY);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,148 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * Everything the UI shows about a transaction, extracted once so that the value is computed a single time
+ * (Transaction.getValue walks all inputs and outputs under the wallet lock) and scripts are parsed a single time.
+ */
+public class TransactionView
+{
+    public static final int DETAIL_NONE = 0;
+    public static final int DETAIL_RECEIVED = 1;
+    public static final int DETAIL_SENT = 2;
+    /** The counterparty script could not be parsed; rendered as a bare "{ " for compatibility. */
+    public static final int DETAIL_UNREADABLE = 3;
+
+    private final Sha256Hash hash;
+    private final BigInteger value;
+    private final Date updateTime;
+    private final boolean pending;
+    private final int detail;
+    private final String detailAddress;
+    private volatile String json;
+
+    private TransactionView(Sha256Hash hash, BigInteger value, Date updateTime, boolean pending, int detail,
+                            String detailAddress)
+    {
+        this.hash = hash;
+        this.value = value;
+        this.updateTime = updateTime;
+        this.pending = pending;
+        this.detail = detail;
+        this.detailAddress = detailAddress;
+    }
+
+    /**
+     * Extracts the view of a wallet transaction.
+     *
+     * @throws ScriptException if the value of the transaction cannot be computed
+     */
+    public static TransactionView fromTransaction(Transaction tx, Wallet wallet, NetworkParameters params)
+        throws ScriptException
+    {
+        BigInteger value = tx.getValue(wallet);
+        boolean pending =
+            (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING);
+
+        int detail = DETAIL_NONE;
+        String detailAddress = null;
+
+        if (tx.getInputs().size() > 0 && value.compareTo(BigInteger.ZERO) > 0)
+        {
+            detail = DETAIL_UNREADABLE;
+            try
+            {
+                TransactionInput in = tx.getInput(0);
+                Script scriptSig = in.getScriptSig();
+                if (scriptSig.getChunks().size() == 2)
+                {
+                    detailAddress = scriptSig.getFromAddress(params).toString();
+                }
+                detail = DETAIL_RECEIVED;
+            }
+            catch (Exception e)
+            {
+                detailAddress = null;
+            }
+        }
+        else if (tx.getOutputs().size() > 0 && value.compareTo(BigInteger.ZERO) < 0)
+        {
+            detail = DETAIL_UNREADABLE;
+            try
+            {
+                TransactionOutput out = tx.getOutput(0);
+                Script scriptPubKey = out.getScriptPubKey();
+                if (scriptPubKey.isSentToAddress())
+                {
+                    detailAddress = scriptPubKey.getToAddress(params).toString();
+                }
+                detail = DETAIL_SENT;
+            }
+            catch (Exception e)
+            {
+                detailAddress = null;
+            }
+        }
+
+        Date updateTime = new Date(tx.getUpdateTime().getTime());
+        return new TransactionView(tx.getHash(), value, updateTime, pending, detail, detailAddress);
+    }
+
+    public Sha256Hash getHash()
+    {
+        return hash;
+    }
+
+    public BigInteger getValue()
+    {
+        return value;
+    }
+
+    public Date getUpdateTime()
+    {
+        return updateTime;
+    }
+
+    public boolean isPending()
+    {
+        return pending;
+    }
+
+    /** One of the DETAIL_ constants. */
+    public int getDetail()
+    {
+        return detail;
+    }
+
+    /** The sender (received) or recipient (sent) address, or null if it is not a standard address script. */
+    public String getDetailAddress()
+    {
+        return detailAddress;
+    }
+
+    /** The JSON form of this view, rendered on first use and kept for as long as the view is cached. */
+    public String toJSON()
+    {
+        String rendered = json;
+        if (rendered == null)
+        {
+            StringBuilder out = new StringBuilder(256);
+            TransactionJSONEncoder.appendTransaction(out, this);
+            rendered = out.toString();
+            json = rendered;
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,174 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of rendered transaction views keyed by transaction hash, so that repeated history reads
+ * don't parse scripts and compute values again.
+ *
+ * Views are computed outside the cache lock. Every invalidation bumps a generation, and a view computed while the
+ * generation changed is not cached, since the change may have made it stale before it was stored.
+ */
+public class TransactionViewCache
+{
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final LinkedHashMap<Sha256Hash, TransactionView> views;
+    private int capacity;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long generation;
+
+    public TransactionViewCache()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransactionViewCache(int capacity)
+    {
+        this.capacity = capacity;
+        this.views = new LinkedHashMap<Sha256Hash, TransactionView>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, TransactionView> eldest)
+            {
+                if (size() > TransactionViewCache.this.capacity)
+                {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** Returns the cached view, or null (counted as a miss) if there is none. */
+    public synchronized TransactionView get(Sha256Hash hash)
+    {
+        TransactionView view = views.get(hash);
+        if (view != null)
+        {
+            hits++;
+        }
+        else
+        {
+            misses++;
+        }
+        return view;
+    }
+
+    /** The generation to pass to put() along with a view computed from now on. */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /** Caches the view unless something was invalidated since the given generation. */
+    public synchronized void put(TransactionView view, long generation)
+    {
+        if (capacity > 0 && generation == this.generation)
+        {
+            views.put(view.getHash(), view);
+        }
+    }
+
+    public synchronized void invalidate(Sha256Hash hash)
+    {
+        views.remove(hash);
+        generation++;
+    }
+
+    /**
+     * Drops the view of the transaction and those of the wallet transactions spending its outputs, whose values
+     * depend on it once their inputs are connected.
+     */
+    public synchronized void invalidateWithSpenders(Transaction tx)
+    {
+        invalidate(tx.getHash());
+        for (TransactionOutput output : tx.getOutputs())
+        {
+            TransactionInput spender = output.getSpentBy();
+            if (spender != null && spender.getParentTransaction() != null)
+            {
+                views.remove(spender.getParentTransaction().getHash());
+            }
+        }
+    }
+
+    /**
+     * Drops the cached view of the transaction if anything it shows has changed. Confidence events fire for
+     * every building transaction on each new block, but a depth change alone doesn't alter the view.
+     */
+    public synchronized void invalidateIfChanged(Transaction tx)
+    {
+        TransactionView view = views.get(tx.getHash());
+        if (view == null)
+        {
+            // it may be computed right now
+            generation++;
+            return;
+        }
+
+        TransactionConfidence.ConfidenceType type = tx.getConfidence().getConfidenceType();
+        boolean pending = (type == TransactionConfidence.ConfidenceType.PENDING);
+
+        if (type == TransactionConfidence.ConfidenceType.DEAD
+            || pending != view.isPending()
+            || !tx.getUpdateTime().equals(view.getUpdateTime()))
+        {
+            views.remove(tx.getHash());
+            generation++;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        views.clear();
+        generation++;
+    }
+
+    public synchronized void setCapacity(int newCapacity)
+    {
+        capacity = newCapacity;
+
+        // trim right away instead of waiting for the next insertion
+        while (views.size() > capacity)
+        {
+            Sha256Hash eldest = views.keySet().iterator().next();
+            views.remove(eldest);
+            evictions++;
+        }
+    }
+
+    public synchronized int getCapacity()
+    {
+        return capacity;
+    }
+
+    public synchronized int size()
+    {
+        return views.size();
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+}
@@ -0,0 +1,122 @@
+package com.hive.bitcoinkit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Holds the AES key derived from the wallet password while the wallet is unlocked, so that sends don't have to
+ * run the scrypt derivation again. The key lives in a single buffer that is zeroed when the session is locked,
+ * either explicitly or after it has not been used for the idle timeout. Callers get copies, which they wipe
+ * themselves when they are done.
+ */
+public class UnlockedWalletSession
+{
+    private final ScheduledExecutorService timer;
+
+    private KeyParameter key;
+    private long idleTimeoutMillis;
+    private long lastUse;
+    private ScheduledFuture<?> expiry;
+
+    public UnlockedWalletSession()
+    {
+        timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Wallet session timer").setDaemon(true).build());
+    }
+
+    /** Takes ownership of the key; it is wiped when the session ends. */
+    public synchronized void unlock(KeyParameter aesKey, long idleTimeout, TimeUnit unit)
+    {
+        lock();
+
+        key = aesKey;
+        idleTimeoutMillis = unit.toMillis(idleTimeout);
+        lastUse = System.currentTimeMillis();
+        scheduleExpiry(idleTimeoutMillis);
+    }
+
+    public synchronized void lock()
+    {
+        if (expiry != null)
+        {
+            expiry.cancel(false);
+            expiry = null;
+        }
+
+        if (key != null)
+        {
+            Arrays.fill(key.getKey(), (byte) 0);
+            key = null;
+        }
+    }
+
+    public synchronized boolean isUnlocked()
+    {
+        return key != null;
+    }
+
+    /** Milliseconds until the session locks itself if it isn't used, or 0 if it is locked. */
+    public synchronized long getRemainingMillis()
+    {
+        if (key == null)
+        {
+            return 0;
+        }
+        return Math.max(0, lastUse + idleTimeoutMillis - System.currentTimeMillis());
+    }
+
+    /** Returns a copy of the session key and restarts the idle timeout, or null if the wallet is locked. */
+    public synchronized KeyParameter copyKey()
+    {
+        if (key == null)
+        {
+            return null;
+        }
+
+        lastUse = System.currentTimeMillis();
+        return new KeyParameter(key.getKey());
+    }
+
+    /** Locks the session and stops its timer for good; lock() alone leaves the session usable. */
+    public void shutdown()
+    {
+        lock();
+        timer.shutdownNow();
+    }
+
+    private void scheduleExpiry(long delayMillis)
+    {
+        expiry = timer.schedule(new Runnable() {
+            public void run()
+            {
+                expire();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expire()
+    {
+        if (key == null)
+        {
+            return;
+        }
+
+        // the key was used since this was scheduled, check again when the new idle period ends
+        long remaining = lastUse + idleTimeoutMillis - System.currentTimeMillis();
+        if (remaining > 0)
+        {
+            scheduleExpiry(remaining);
+        }
+        else
+        {
+            lock();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The wallet's unspent outputs, sorted by value and by the height of the block they appeared in, maintained
+ * incrementally from wallet events like TransactionIndex. IndexedCoinSelector walks these orders instead of
+ * sorting every spend candidate each time Wallet.completeTx() asks for a selection.
+ *
+ * Updates arrive on the wallet's event thread and may lag behind the wallet, so every entry is checked against
+ * the wallet's current state when it is selected, and entries that are no longer spendable are dropped then.
+ * Whether an output is ours is decided before taking this index's lock: selection runs while completeTx() holds
+ * the wallet lock, so the index must never wait for the wallet lock itself.
+ */
+public class UnspentOutputIndex
+{
+    /** Height used for outputs of transactions that are not in the chain yet, they sort as the youngest. */
+    private static final int UNCONFIRMED = Integer.MAX_VALUE;
+
+    private final HashMap<Sha256Hash, Entry[]> entriesByTx;
+    private final TreeSet<Entry> byValue;
+    private final TreeSet<Entry> byHeight;
+    private final Set<TransactionOutput> reserved;
+    private Wallet wallet;
+
+    public UnspentOutputIndex()
+    {
+        entriesByTx = new HashMap<Sha256Hash, Entry[]>();
+        byValue = new TreeSet<Entry>(new Comparator<Entry>() {
+            public int compare(Entry a, Entry b)
+            {
+                int result = a.value.compareTo(b.value);
+                return (result != 0) ? result : a.compareOutPoint(b);
+            }
+        });
+        byHeight = new TreeSet<Entry>(new Comparator<Entry>() {
+            public int compare(Entry a, Entry b)
+            {
+                int result = (a.height < b.height) ? -1 : ((a.height == b.height) ? 0 : 1);
+                return (result != 0) ? result : a.compareOutPoint(b);
+            }
+        });
+        reserved = Collections.newSetFromMap(new IdentityHashMap<TransactionOutput, Boolean>());
+    }
+
+    /** Drops the current contents and indexes all unspent outputs of the given wallet. */
+    public void rebuild(Wallet wallet)
+    {
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        List<boolean[]> spendable = new ArrayList<boolean[]>();
+        if (wallet != null)
+        {
+            for (Transaction tx : wallet.getTransactions(false))
+            {
+                transactions.add(tx);
+                spendable.add(spendableOutputs(wallet, tx));
+            }
+        }
+
+        synchronized (this)
+        {
+            entriesByTx.clear();
+            byValue.clear();
+            byHeight.clear();
+            this.wallet = wallet;
+
+            for (int i = 0; i < transactions.size(); i++)
+            {
+                put(transactions.get(i), spendable.get(i));
+            }
+        }
+    }
+
+    /** Re-indexes the outputs of a transaction that was added or changed, and removes the outputs it spends. */
+    public void update(Transaction tx)
+    {
+        Wallet wallet;
+        synchronized (this)
+        {
+            wallet = this.wallet;
+        }
+        if (wallet == null)
+        {
+            return;
+        }
+
+        boolean dead = tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD;
+        boolean[] spendable = dead ? null : spendableOutputs(wallet, tx);
+
+        synchronized (this)
+        {
+            if (wallet != this.wallet)
+            {
+                return;
+            }
+
+            removeAll(tx.getHash());
+            if (!dead)
+            {
+                for (TransactionInput input : tx.getInputs())
+                {
+                    TransactionOutPoint outPoint = input.getOutpoint();
+                    Entry[] parentEntries = entriesByTx.get(outPoint.getHash());
+                    if (parentEntries != null && outPoint.getIndex() < parentEntries.length)
+                    {
+                        remove(parentEntries, (int) outPoint.getIndex());
+                    }
+                }
+                put(tx, spendable);
+            }
+        }
+
+        if (dead)
+        {
+            // a double spent transaction gives back the outputs it spent
+            for (TransactionInput input : tx.getInputs())
+            {
+                Transaction parent = wallet.getTransaction(input.getOutpoint().getHash());
+                if (parent != null)
+                {
+                    update(parent);
+                }
+            }
+        }
+    }
+
+    public synchronized int size()
+    {
+        return byValue.size();
+    }
+
+    /**
+     * Keeps the outputs from being selected, because a send request that was prepared but not committed yet spends
+     * them. Reservations survive rebuilds and are only dropped by release().
+     */
+    public synchronized void reserve(List<TransactionOutput> outputs)
+    {
+        reserved.addAll(outputs);
+    }
+
+    public synchronized void release(List<TransactionOutput> outputs)
+    {
+        reserved.removeAll(outputs);
+    }
+
+    /** The candidates that are not reserved, for selectors that work on the wallet's own candidate list. */
+    public synchronized LinkedList<TransactionOutput> withoutReserved(LinkedList<TransactionOutput> candidates)
+    {
+        if (reserved.isEmpty())
+        {
+            return candidates;
+        }
+
+        LinkedList<TransactionOutput> available = new LinkedList<TransactionOutput>();
+        for (TransactionOutput output : candidates)
+        {
+            if (!reserved.contains(output))
+            {
+                available.add(output);
+            }
+        }
+        return available;
+    }
+
+    /** Takes the largest outputs first, which spends the target with as few inputs as possible. */
+    public synchronized Selection selectLargestFirst(BigInteger target)
+    {
+        Selection selection = new Selection();
+        gather(byValue.descendingIterator(), target, selection);
+        return selection;
+    }
+
+    /** Takes the outputs that have been in the chain longest first. */
+    public synchronized Selection selectOldestFirst(BigInteger target)
+    {
+        Selection selection = new Selection();
+        gather(byHeight.iterator(), target, selection);
+        return selection;
+    }
+
+    /**
+     * Tries to get as close to the target as possible so that there is little or no change: the smallest single
+     * output that covers the target, otherwise the largest outputs with the last one replaced by the smallest
+     * output that still covers the rest.
+     */
+    public synchronized Selection selectClosest(BigInteger target)
+    {
+        Selection selection = new Selection();
+
+        Entry single = ceiling(target, null);
+        if (single != null)
+        {
+            selection.add(single);
+            return selection;
+        }
+
+        gather(byValue.descendingIterator(), target, selection);
+        if (selection.valueGathered.compareTo(target) < 0)
+        {
+            return selection;
+        }
+
+        Entry last = selection.entries.remove(selection.entries.size() - 1);
+        selection.valueGathered = selection.valueGathered.subtract(last.value);
+        Entry replacement = ceiling(target.subtract(selection.valueGathered), last);
+        selection.add((replacement != null) ? replacement : last);
+        return selection;
+    }
+
+    /**
+     * The smallest spendable output worth at least the value, or null. Only outputs before limit in value order
+     * are considered if limit is given.
+     */
+    private Entry ceiling(BigInteger value, Entry limit)
+    {
+        NavigableSet<Entry> candidates = byValue.tailSet(Entry.lowest(value), true);
+        if (limit != null)
+        {
+            candidates = candidates.headSet(limit, true);
+        }
+
+        List<Entry> stale = new ArrayList<Entry>();
+        try
+        {
+            for (Entry entry : candidates)
+            {
+                if (entry.isStale())
+                {
+                    stale.add(entry);
+                }
+                else if (entry.isSelectable() && !reserved.contains(entry.output))
+                {
+                    return entry;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            removeStale(stale);
+        }
+    }
+
+    private void gather(Iterator<Entry> iterator, BigInteger target, Selection selection)
+    {
+        List<Entry> stale = new ArrayList<Entry>();
+        while (iterator.hasNext() && selection.valueGathered.compareTo(target) < 0)
+        {
+            Entry entry = iterator.next();
+            if (entry.isStale())
+            {
+                stale.add(entry);
+            }
+            else if (entry.isSelectable() && !reserved.contains(entry.output))
+            {
+                selection.add(entry);
+            }
+        }
+        removeStale(stale);
+    }
+
+    private void removeStale(List<Entry> stale)
+    {
+        for (Entry entry : stale)
+        {
+            Entry[] entries = entriesByTx.get(entry.output.getParentTransaction().getHash());
+            if (entries != null)
+            {
+                remove(entries, entry.index);
+            }
+        }
+    }
+
+    private void put(Transaction tx, boolean[] spendable)
+    {
+        Entry[] entries = null;
+        int height = height(tx);
+        for (int i = 0; i < spendable.length; i++)
+        {
+            if (spendable[i])
+            {
+                if (entries == null)
+                {
+                    entries = new Entry[spendable.length];
+                }
+                entries[i] = new Entry(tx.getOutputs().get(i), i, height);
+                byValue.add(entries[i]);
+                byHeight.add(entries[i]);
+            }
+        }
+
+        if (entries != null)
+        {
+            entriesByTx.put(tx.getHash(), entries);
+        }
+    }
+
+    private void removeAll(Sha256Hash hash)
+    {
+        Entry[] entries = entriesByTx.remove(hash);
+        if (entries != null)
+        {
+            for (Entry entry : entries)
+            {
+                if (entry != null)
+                {
+                    byValue.remove(entry);
+                    byHeight.remove(entry);
+                }
+            }
+        }
+    }
+
+    private void remove(Entry[] entries, int index)
+    {
+        Entry entry = entries[index];
+        if (entry == null)
+        {
+            return;
+        }
+
+        byValue.remove(entry);
+        byHeight.remove(entry);
+        entries[index] = null;
+
+        for (Entry other : entries)
+        {
+            if (other != null)
+            {
+                return;
+            }
+        }
+        entriesByTx.remove(entry.output.getParentTransaction().getHash());
+    }
+
+    /** Which outputs of the transaction are ours and unspent. May take the wallet lock. */
+    private static boolean[] spendableOutputs(Wallet wallet, Transaction tx)
+    {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        boolean[] spendable = new boolean[outputs.size()];
+        for (int i = 0; i < spendable.length; i++)
+        {
+            TransactionOutput output = outputs.get(i);
+            spendable[i] = output.isAvailableForSpending() && output.isMine(wallet);
+        }
+        return spendable;
+    }
+
+    private static int height(Transaction tx)
+    {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+        {
+            return confidence.getAppearedAtChainHeight();
+        }
+        return UNCONFIRMED;
+    }
+
+    /** Outputs picked by one of the select methods. */
+    public static class Selection
+    {
+        public final List<Entry> entries = new ArrayList<Entry>();
+        public BigInteger valueGathered = BigInteger.ZERO;
+
+        void add(Entry entry)
+        {
+            entries.add(entry);
+            valueGathered = valueGathered.add(entry.value);
+        }
+
+        public List<TransactionOutput> getOutputs()
+        {
+            List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(entries.size());
+            for (Entry entry : entries)
+            {
+                outputs.add(entry.output);
+            }
+            return outputs;
+        }
+    }
+
+    public static class Entry
+    {
+        final TransactionOutput output;
+        final BigInteger value;
+        final int index;
+        final int height;
+
+        Entry(TransactionOutput output, int index, int height)
+        {
+            this(output, output.getValue(), index, height);
+        }
+
+        private Entry(TransactionOutput output, BigInteger value, int index, int height)
+        {
+            this.output = output;
+            this.value = value;
+            this.index = index;
+            this.height = height;
+        }
+
+        /** A key that sorts before every output of the given value. */
+        static Entry lowest(BigInteger value)
+        {
+            return new Entry(null, value, -1, Integer.MIN_VALUE);
+        }
+
+        public TransactionOutput getOutput()
+        {
+            return output;
+        }
+
+        /** Spent, or its transaction is dead; the event that said so may not have arrived yet. */
+        boolean isStale()
+        {
+            return !output.isAvailableForSpending()
+                || output.getParentTransaction().getConfidence().getConfidenceType()
+                   == TransactionConfidence.ConfidenceType.DEAD;
+        }
+
+        /** Same rules as the wallet's own selection: confirmed or our own broadcast, and mature. */
+        boolean isSelectable()
+        {
+            Transaction tx = output.getParentTransaction();
+            return DefaultCoinSelector.isSelectable(tx) && tx.isMature();
+        }
+
+        /** Orders entries of equal value or height; Sha256Hash.compareTo() only compares hash codes. */
+        int compareOutPoint(Entry other)
+        {
+            if (output == null || other.output == null)
+            {
+                return (output == other.output) ? 0 : ((output == null) ? -1 : 1);
+            }
+
+            byte[] hash = output.getParentTransaction().getHash().getBytes();
+            byte[] otherHash = other.output.getParentTransaction().getHash().getBytes();
+            for (int i = 0; i < hash.length; i++)
+            {
+                if (hash[i] != otherHash[i])
+                {
+                    return (hash[i] & 0xff) - (otherHash[i] & 0xff);
+                }
+            }
+            return index - other.index;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Addresses of the wallet's issued keys, by key index. Deriving an address costs a SHA256/RIPEMD160 hash and a
+ * Base58Check encoding and Wallet.getKeys() copies the whole key list, so both are done once per key instead of
+ * on every call. Keys are only ever appended to a wallet, which makes the number of issued keys (see KeyPool) a
+ * sufficient staleness check.
+ */
+public class WalletAddressCache
+{
+    private final ArrayList<String> addresses;
+    private String json;
+
+    public WalletAddressCache()
+    {
+        addresses = new ArrayList<String>();
+    }
+
+    public synchronized void clear()
+    {
+        addresses.clear();
+        json = null;
+    }
+
+    public synchronized String getAddress(Wallet wallet, NetworkParameters params, int keyCount, int index)
+    {
+        update(wallet, params, keyCount);
+        return addresses.get(index);
+    }
+
+    public synchronized int size(Wallet wallet, NetworkParameters params, int keyCount)
+    {
+        update(wallet, params, keyCount);
+        return addresses.size();
+    }
+
+    /** All addresses as a JSON array of strings, rebuilt only when keys were added. */
+    public synchronized String getJSON(Wallet wallet, NetworkParameters params, int keyCount)
+    {
+        update(wallet, params, keyCount);
+
+        if (json == null)
+        {
+            StringBuilder buffer = new StringBuilder(2 + addresses.size() * 38);
+            buffer.append("[");
+            for (int i = 0; i < addresses.size(); i++)
+            {
+                if (i > 0)
+                {
+                    buffer.append(",");
+                }
+                buffer.append("\"").append(addresses.get(i)).append("\"");
+            }
+            buffer.append("]");
+            json = buffer.toString();
+        }
+
+        return json;
+    }
+
+    /**
+     * Records the address of a key that was just issued (keyCount now includes it), without copying the key list
+     * when the cache is otherwise up to date. Returns the key's address.
+     */
+    public synchronized String keyIssued(Wallet wallet, NetworkParameters params, int keyCount, ECKey key)
+    {
+        String address = key.toAddress(params).toString();
+
+        if (addresses.size() == keyCount - 1)
+        {
+            addresses.add(address);
+            json = null;
+        }
+        else
+        {
+            update(wallet, params, keyCount);
+        }
+
+        return address;
+    }
+
+    private void update(Wallet wallet, NetworkParameters params, int keyCount)
+    {
+        if (addresses.size() == keyCount)
+        {
+            return;
+        }
+
+        List<ECKey> keys = wallet.getKeys();
+        int count = Math.min(keyCount, keys.size());
+        if (count < addresses.size())
+        {
+            // not expected to happen, but don't serve addresses of keys the wallet doesn't have
+            addresses.clear();
+        }
+
+        for (int i = addresses.size(); i < count; i++)
+        {
+            addresses.add(keys.get(i).toAddress(params).toString());
+        }
+        json = null;
+    }
+}
@@ -0,0 +1,170 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Writes the wallet's keys, one ECKey.toStringWithPrivate() line per key, decrypting them in parallel with a key
+ * that was derived once by the caller. Keys are processed in chunks that are written in wallet order as soon as they
+ * are ready, so the dump is never held in memory as a whole; each chunk's buffers are zeroed once written.
+ * Immutable copies made inside bitcoinj (the BigInteger private key, the line string) can't be wiped.
+ */
+public class WalletDumpWriter
+{
+    private static final int KEYS_PER_CHUNK = 32;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the dump to the stream. aesKey may be null, encrypted keys are then written without their private
+     * part. Throws KeyCrypterException if a key can't be decrypted with the given key.
+     */
+    public static void write(Wallet wallet, KeyParameter aesKey, OutputStream out) throws IOException
+    {
+        List<ECKey> keys = wallet.getKeys();
+        KeyCrypter keyCrypter = wallet.getKeyCrypter();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("Wallet dump %d").setDaemon(true).build());
+        ArrayDeque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>();
+        try
+        {
+            int next = 0;
+            while (next < keys.size() || !window.isEmpty())
+            {
+                // keep every core busy, but only a bounded number of chunks ahead of the writer
+                while (next < keys.size() && window.size() < THREADS * 2)
+                {
+                    int end = Math.min(next + KEYS_PER_CHUNK, keys.size());
+                    window.add(executor.submit(new ChunkTask(keys.subList(next, end), keyCrypter, aesKey)));
+                    next = end;
+                }
+
+                byte[] chunk = await(window.poll());
+                try
+                {
+                    out.write(chunk);
+                }
+                finally
+                {
+                    Arrays.fill(chunk, (byte) 0);
+                }
+            }
+            out.flush();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            wipe(window);
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the wallet dump", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof KeyCrypterException)
+            {
+                throw (KeyCrypterException) e.getCause();
+            }
+            throw new IOException("Could not write the wallet dump", e.getCause());
+        }
+    }
+
+    /** Zeroes the chunks that were decrypted but not written because the dump failed. */
+    private static void wipe(ArrayDeque<Future<byte[]>> window)
+    {
+        for (Future<byte[]> future : window)
+        {
+            future.cancel(true);
+            if (future.isDone() && !future.isCancelled())
+            {
+                try
+                {
+                    Arrays.fill(future.get(), (byte) 0);
+                }
+                catch (Exception e)
+                {
+                    // nothing was produced
+                }
+            }
+        }
+        window.clear();
+    }
+
+    private static class ChunkTask implements Callable<byte[]>
+    {
+        private final List<ECKey> keys;
+        private final KeyCrypter keyCrypter;
+        private final KeyParameter aesKey;
+
+        ChunkTask(List<ECKey> keys, KeyCrypter keyCrypter, KeyParameter aesKey)
+        {
+            this.keys = keys;
+            this.keyCrypter = keyCrypter;
+            this.aesKey = aesKey;
+        }
+
+        public byte[] call()
+        {
+            StringBuilder lines = new StringBuilder(keys.size() * 256);
+            try
+            {
+                for (ECKey key : keys)
+                {
+                    ECKey keyToDump = key;
+                    if (aesKey != null && key.isEncrypted())
+                    {
+                        ECKey decryptedKey = key.decrypt(keyCrypter, aesKey);
+                        if (decryptedKey != null)
+                        {
+                            keyToDump = decryptedKey;
+                        }
+                    }
+                    lines.append(keyToDump.toStringWithPrivate()).append("\n");
+                }
+
+                ByteBuffer encoded = UTF8.encode(CharBuffer.wrap(lines));
+                byte[] chunk = new byte[encoded.remaining()];
+                encoded.get(chunk);
+                Arrays.fill(encoded.array(), (byte) 0);
+                return chunk;
+            }
+            finally
+            {
+                for (int i = 0; i < lines.length(); i++)
+                {
+                    lines.setCharAt(i, '\0');
+                }
+            }
+        }
+    }
+}
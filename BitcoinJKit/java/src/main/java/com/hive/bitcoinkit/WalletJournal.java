@@ -0,0 +1,1076 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletExtension;
+import com.google.bitcoin.crypto.EncryptedPrivateKey;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+
+import org.bitcoinj.wallet.Protos;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journaling persistence for the wallet. Instead of rewriting the whole protobuf wallet after every change (what
+ * Wallet.autosaveToFile does), each change is appended as a small record to "&lt;wallet&gt;.journal": transactions
+ * whose pool, confidence or update time changed, new keys, wallet extension state and the last block seen. Depth
+ * changes are not journaled, they are recomputed from the last block seen on recovery. A full snapshot is written
+ * only when the journal grows past a threshold, periodically, and on shutdown.
+ *
+ * Compaction rotates the journal to "&lt;wallet&gt;.journal.old", starts a new journal, saves the snapshot and then
+ * deletes the old journal. Each journal starts with the snapshot sequence it continues from and the snapshot stores
+ * its own sequence (WalletJournalExtension), so after a crash at any point of that sequence recover() replays
+ * exactly the journals the snapshot on disk doesn't contain yet. Records are checksummed; replay stops at a torn
+ * tail. WalletSyncBenchmark in the benchmarks module compares the writes with full snapshots.
+ */
+public class WalletJournal
+{
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+    public static final long COMPACTION_INTERVAL_SECONDS = 10 * 60;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+    private static final LatencyHistogram saveLatency = Metrics.get().histogram("walletSave");
+
+    private static final int MAGIC = 0x484a4e4c; // "HJNL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private static final byte RECORD_TRANSACTION = 1;
+    private static final byte RECORD_KEY = 2;
+    private static final byte RECORD_EXTENSION = 3;
+    private static final byte RECORD_LAST_BLOCK = 4;
+
+    private static final long LAST_BLOCK_CHECK_SECONDS = 1;
+
+    // stable on-disk codes, the index in these arrays is what gets written
+    private static final WalletTransaction.Pool[] POOLS = {
+        WalletTransaction.Pool.UNSPENT, WalletTransaction.Pool.SPENT,
+        WalletTransaction.Pool.DEAD, WalletTransaction.Pool.PENDING
+    };
+    private static final TransactionConfidence.ConfidenceType[] CONFIDENCE_TYPES = {
+        TransactionConfidence.ConfidenceType.UNKNOWN, TransactionConfidence.ConfidenceType.BUILDING,
+        TransactionConfidence.ConfidenceType.PENDING, TransactionConfidence.ConfidenceType.DEAD
+    };
+    private static final TransactionConfidence.Source[] SOURCES = {
+        TransactionConfidence.Source.UNKNOWN, TransactionConfidence.Source.NETWORK,
+        TransactionConfidence.Source.SELF
+    };
+
+    private final File walletFile;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final ScheduledExecutorService executor;
+    private final Object compactionLock = new Object();
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(512);
+    private final CRC32 checksum = new CRC32();
+    private final HashMap<Sha256Hash, TransactionState> journaledStates = new HashMap<Sha256Hash, TransactionState>();
+
+    private Wallet wallet;
+    private WalletJournalExtension extension;
+    private LazyWalletFile lazyWalletFile;
+    private FileOutputStream out;
+    private long journalSize;
+    private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private boolean compactionScheduled;
+    private long recordsSinceCompaction;
+    private Sha256Hash journaledLastBlock;
+
+    private long recordsWritten;
+    private long bytesWritten;
+    private long appendNanos;
+    private long maxAppendNanos;
+    private long snapshotsWritten;
+    private long snapshotBytesWritten;
+    private long snapshotNanos;
+    private long maxSnapshotNanos;
+
+    public WalletJournal(File walletFile)
+    {
+        this.walletFile = walletFile;
+        this.journalFile = journalFile(walletFile);
+        this.oldJournalFile = oldJournalFile(walletFile);
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Wallet journal").setDaemon(true).build());
+    }
+
+    private static File journalFile(File walletFile)
+    {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    private static File oldJournalFile(File walletFile)
+    {
+        return new File(walletFile.getPath() + ".journal.old");
+    }
+
+    /** Whether there are journal files next to the wallet, e.g. left behind by a crash. */
+    public static boolean exists(File walletFile)
+    {
+        return journalFile(walletFile).exists() || oldJournalFile(walletFile).exists();
+    }
+
+    public static void deleteFiles(File walletFile)
+    {
+        journalFile(walletFile).delete();
+        oldJournalFile(walletFile).delete();
+    }
+
+    /**
+     * Starts journaling changes of the given wallet. Leftover journal files have already been replayed into it by
+     * recover(), so they are folded into a fresh snapshot first.
+     */
+    public void start(Wallet wallet, WalletJournalExtension extension) throws IOException
+    {
+        boolean leftovers = exists(walletFile);
+
+        synchronized (this)
+        {
+            this.wallet = wallet;
+            this.extension = extension;
+            this.journaledLastBlock = wallet.getLastBlockSeenHash();
+
+            if (!leftovers)
+            {
+                openJournal(extension.getSnapshotSequence());
+            }
+        }
+
+        if (leftovers)
+        {
+            compact();
+        }
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                appendLastBlock();
+            }
+        }, LAST_BLOCK_CHECK_SECONDS, LAST_BLOCK_CHECK_SECONDS, TimeUnit.SECONDS);
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                if (getRecordsSinceCompaction() > 0)
+                {
+                    compactQuietly();
+                }
+            }
+        }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Writes a final snapshot and stops journaling. */
+    public void stop() throws IOException
+    {
+        executor.shutdownNow();
+        compact();
+
+        synchronized (this)
+        {
+            closeJournal();
+            wallet = null;
+            extension = null;
+        }
+    }
+
+    /** Snapshots of a lazily loaded wallet have to be written through its LazyWalletFile. */
+    public synchronized void setLazyWalletFile(LazyWalletFile lazyWalletFile)
+    {
+        this.lazyWalletFile = lazyWalletFile;
+    }
+
+    public synchronized void setCompactionThreshold(long bytes)
+    {
+        compactionThreshold = bytes;
+    }
+
+    private synchronized long getRecordsSinceCompaction()
+    {
+        return recordsSinceCompaction;
+    }
+
+    /* --- Appending --- */
+
+    /** Journals the transaction and the wallet transactions it spends, whose pools may have changed with it. */
+    public synchronized void appendTransactionWithParents(Transaction tx)
+    {
+        appendTransaction(tx);
+
+        if (wallet == null)
+        {
+            return;
+        }
+
+        for (TransactionInput input : tx.getInputs())
+        {
+            Transaction parent = wallet.getTransaction(input.getOutpoint().getHash());
+            if (parent != null)
+            {
+                appendTransaction(parent);
+            }
+        }
+    }
+
+    /** Journals the transaction unless nothing but its depth has changed since it was last journaled. */
+    public synchronized void appendTransaction(Transaction tx)
+    {
+        if (wallet == null)
+        {
+            return;
+        }
+
+        TransactionConfidence confidence = tx.getConfidence();
+        TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        int appearedAtHeight = (type == TransactionConfidence.ConfidenceType.BUILDING)
+                               ? confidence.getAppearedAtChainHeight() : -1;
+
+        TransactionState state = new TransactionState(poolOf(tx, wallet), type, confidence.getSource(),
+                                                       appearedAtHeight, tx.getUpdateTime().getTime());
+        if (state.equals(journaledStates.get(tx.getHash())))
+        {
+            return;
+        }
+
+        try
+        {
+            DataOutputStream payload = startRecord();
+            payload.write(tx.getHash().getBytes());
+            payload.writeByte(indexOf(POOLS, state.pool));
+            payload.writeByte(indexOf(CONFIDENCE_TYPES, state.type));
+            payload.writeByte(indexOf(SOURCES, state.source));
+            payload.writeInt(state.appearedAtHeight);
+            payload.writeLong(state.updateTime);
+
+            Map<Sha256Hash, Integer> appearances = tx.getAppearsInHashes();
+            payload.writeInt((appearances != null) ? appearances.size() : 0);
+            if (appearances != null)
+            {
+                for (Map.Entry<Sha256Hash, Integer> appearance : appearances.entrySet())
+                {
+                    payload.write(appearance.getKey().getBytes());
+                    payload.writeInt(appearance.getValue());
+                }
+            }
+
+            byte[] txBytes = tx.bitcoinSerialize();
+            payload.writeInt(txBytes.length);
+            payload.write(txBytes);
+
+            writeRecord(RECORD_TRANSACTION);
+            journaledStates.put(tx.getHash(), state);
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+    }
+
+    public synchronized void appendKeys(List<ECKey> keys)
+    {
+        if (wallet == null)
+        {
+            return;
+        }
+
+        try
+        {
+            for (ECKey key : keys)
+            {
+                DataOutputStream payload = startRecord();
+                payload.write(keyToProto(key).toByteArray());
+                writeRecord(RECORD_KEY);
+            }
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+    }
+
+    public synchronized void appendExtension(WalletExtension walletExtension)
+    {
+        if (wallet == null)
+        {
+            return;
+        }
+
+        try
+        {
+            Protos.Extension proto = Protos.Extension.newBuilder()
+                .setId(walletExtension.getWalletExtensionID())
+                .setData(ByteString.copyFrom(walletExtension.serializeWalletExtension()))
+                .setMandatory(walletExtension.isWalletExtensionMandatory())
+                .build();
+
+            DataOutputStream payload = startRecord();
+            payload.write(proto.toByteArray());
+            writeRecord(RECORD_EXTENSION);
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+    }
+
+    /** Journals the last block seen by the wallet if it moved; polled, as the wallet fires no event for it. */
+    public synchronized void appendLastBlock()
+    {
+        if (wallet == null)
+        {
+            return;
+        }
+
+        Sha256Hash lastBlock = wallet.getLastBlockSeenHash();
+        if (lastBlock == null || lastBlock.equals(journaledLastBlock))
+        {
+            return;
+        }
+
+        try
+        {
+            DataOutputStream payload = startRecord();
+            payload.write(lastBlock.getBytes());
+            payload.writeInt(wallet.getLastBlockSeenHeight());
+            payload.writeLong(wallet.getLastBlockSeenTimeSecs());
+            writeRecord(RECORD_LAST_BLOCK);
+            journaledLastBlock = lastBlock;
+        }
+        catch (IOException e)
+        {
+            journalFailed(e);
+        }
+    }
+
+    private DataOutputStream startRecord()
+    {
+        recordBuffer.reset();
+        return new DataOutputStream(recordBuffer);
+    }
+
+    /** Frames what was written since startRecord() as: int length, byte type, payload, int CRC32 of type and payload. */
+    private void writeRecord(byte type) throws IOException
+    {
+        if (out == null)
+        {
+            // a failed rotation left no journal open; the caller falls back to a snapshot
+            throw new IOException("The wallet journal is not open");
+        }
+
+        long start = System.nanoTime();
+        byte[] payload = recordBuffer.toByteArray();
+
+        checksum.reset();
+        checksum.update(type);
+        checksum.update(payload, 0, payload.length);
+
+        byte[] frame = new byte[4 + 1 + payload.length + 4];
+        int length = 1 + payload.length;
+        putInt(frame, 0, length);
+        frame[4] = type;
+        System.arraycopy(payload, 0, frame, 5, payload.length);
+        putInt(frame, 5 + payload.length, (int) checksum.getValue());
+
+        out.write(frame);
+
+        long elapsed = System.nanoTime() - start;
+        recordsWritten++;
+        recordsSinceCompaction++;
+        bytesWritten += frame.length;
+        journalSize += frame.length;
+        appendNanos += elapsed;
+        maxAppendNanos = Math.max(maxAppendNanos, elapsed);
+
+        if (journalSize > compactionThreshold)
+        {
+            requestCompaction();
+        }
+    }
+
+    private void journalFailed(IOException e)
+    {
+        // nothing that was lost can be journaled again, so fall back to a full snapshot
+        log.error("Could not append to the wallet journal, saving a snapshot instead", e);
+        requestCompaction();
+    }
+
+    /* --- Compaction --- */
+
+    public synchronized void requestCompaction()
+    {
+        if (compactionScheduled || executor.isShutdown())
+        {
+            return;
+        }
+
+        compactionScheduled = true;
+        executor.execute(new Runnable() {
+            public void run()
+            {
+                compactQuietly();
+            }
+        });
+    }
+
+    private void compactQuietly()
+    {
+        try
+        {
+            compact();
+        }
+        catch (IOException e)
+        {
+            log.error("Could not save a wallet snapshot, the journal is kept", e);
+        }
+    }
+
+    /** Saves a full snapshot of the wallet and drops the journal records it supersedes. */
+    public void compact() throws IOException
+    {
+        synchronized (compactionLock)
+        {
+            Wallet snapshotWallet;
+            LazyWalletFile snapshotLazyFile;
+            synchronized (this)
+            {
+                compactionScheduled = false;
+                if (wallet == null)
+                {
+                    return;
+                }
+                snapshotWallet = wallet;
+                snapshotLazyFile = lazyWalletFile;
+
+                closeJournal();
+                if (journalFile.exists())
+                {
+                    if (oldJournalFile.exists())
+                    {
+                        // the last snapshot failed, so the old journal is still needed; keep all records in it
+                        appendRecords(journalFile, oldJournalFile);
+                        journalFile.delete();
+                    }
+                    else if (!journalFile.renameTo(oldJournalFile))
+                    {
+                        throw new IOException("Could not rotate the wallet journal " + journalFile);
+                    }
+                }
+
+                long sequence = extension.getSnapshotSequence() + 1;
+                extension.setSnapshotSequence(sequence);
+                openJournal(sequence);
+                recordsSinceCompaction = 0;
+
+                // the snapshot holds every transaction as it is from here on
+                journaledStates.clear();
+            }
+
+            long start = System.nanoTime();
+            if (snapshotLazyFile != null)
+            {
+                snapshotLazyFile.save(snapshotWallet, walletFile);
+            }
+            else
+            {
+                snapshotWallet.saveToFile(walletFile);
+                saveLatency.recordSince(start);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (this)
+            {
+                snapshotsWritten++;
+                snapshotBytesWritten += walletFile.length();
+                snapshotNanos += elapsed;
+                maxSnapshotNanos = Math.max(maxSnapshotNanos, elapsed);
+            }
+
+            oldJournalFile.delete();
+        }
+    }
+
+    private void openJournal(long baseSequence) throws IOException
+    {
+        out = new FileOutputStream(journalFile);
+
+        byte[] header = new byte[HEADER_SIZE];
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, VERSION);
+        putInt(header, 8, (int) (baseSequence >>> 32));
+        putInt(header, 12, (int) baseSequence);
+        out.write(header);
+
+        journalSize = HEADER_SIZE;
+    }
+
+    private void closeJournal()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Could not close the wallet journal", e);
+            }
+            out = null;
+        }
+    }
+
+    private static void appendRecords(File source, File destination) throws IOException
+    {
+        FileInputStream input = new FileInputStream(source);
+        FileOutputStream output = new FileOutputStream(destination, true);
+        try
+        {
+            FileChannel sourceChannel = input.getChannel();
+            long size = sourceChannel.size();
+            if (size > HEADER_SIZE)
+            {
+                sourceChannel.transferTo(HEADER_SIZE, size - HEADER_SIZE, output.getChannel());
+            }
+        }
+        finally
+        {
+            input.close();
+            output.close();
+        }
+    }
+
+    /* --- Measurements --- */
+
+    /**
+     * Journal and snapshot write volumes and latencies since start. Write amplification is the total number of
+     * bytes written per journaled byte.
+     */
+    public synchronized String getStatsJSON()
+    {
+        double writeAmplification = (bytesWritten > 0)
+                                    ? (double) (bytesWritten + snapshotBytesWritten) / bytesWritten : 0;
+
+        return "{ \"journalRecords\": " + recordsWritten
+            + ", \"journalBytes\": " + bytesWritten
+            + ", \"journalSize\": " + journalSize
+            + ", \"avgAppendMicros\": " + ((recordsWritten > 0) ? appendNanos / recordsWritten / 1000 : 0)
+            + ", \"maxAppendMicros\": " + maxAppendNanos / 1000
+            + ", \"snapshots\": " + snapshotsWritten
+            + ", \"snapshotBytes\": " + snapshotBytesWritten
+            + ", \"avgSnapshotMillis\": " + ((snapshotsWritten > 0) ? snapshotNanos / snapshotsWritten / 1000000 : 0)
+            + ", \"maxSnapshotMillis\": " + maxSnapshotNanos / 1000000
+            + ", \"writeAmplification\": " + writeAmplification
+            + " }";
+    }
+
+    /* --- Recovery --- */
+
+    /**
+     * Reads the journal records written after the snapshot with the given sequence. Apply the result to the parsed
+     * snapshot before building the wallet, and to the wallet afterwards.
+     */
+    public static Recovery recover(File walletFile, long snapshotSequence, NetworkParameters params)
+    {
+        Recovery recovery = new Recovery(params);
+        recovery.read(oldJournalFile(walletFile), snapshotSequence);
+        recovery.read(journalFile(walletFile), snapshotSequence);
+        return recovery;
+    }
+
+    public static class Recovery
+    {
+        private final NetworkParameters params;
+        private final LinkedHashMap<Sha256Hash, TransactionRecord> transactions =
+            new LinkedHashMap<Sha256Hash, TransactionRecord>();
+        private final LinkedHashMap<ByteString, Protos.Key> keys = new LinkedHashMap<ByteString, Protos.Key>();
+        private final LinkedHashMap<String, Protos.Extension> extensions =
+            new LinkedHashMap<String, Protos.Extension>();
+        private byte[] lastBlockHash;
+        private int lastBlockHeight;
+        private long lastBlockTimeSecs;
+        private int records;
+
+        private Recovery(NetworkParameters params)
+        {
+            this.params = params;
+        }
+
+        public boolean isEmpty()
+        {
+            return records == 0;
+        }
+
+        public int getRecordCount()
+        {
+            return records;
+        }
+
+        public Set<Sha256Hash> getTransactionHashes()
+        {
+            return transactions.keySet();
+        }
+
+        private void read(File file, long snapshotSequence)
+        {
+            if (!file.exists())
+            {
+                return;
+            }
+
+            try
+            {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try
+                {
+                    if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                    {
+                        log.warn("Ignoring unreadable wallet journal " + file);
+                        return;
+                    }
+
+                    long baseSequence = input.readLong();
+                    if (baseSequence < snapshotSequence)
+                    {
+                        // already contained in the snapshot
+                        return;
+                    }
+
+                    readRecords(input, file);
+                }
+                finally
+                {
+                    input.close();
+                }
+            }
+            catch (IOException e)
+            {
+                log.warn("Stopped reading wallet journal " + file, e);
+            }
+        }
+
+        private void readRecords(DataInputStream input, File file) throws IOException
+        {
+            CRC32 checksum = new CRC32();
+
+            while (true)
+            {
+                byte[] record;
+                int storedChecksum;
+                try
+                {
+                    int length = input.readInt();
+                    if (length < 1 || length > MAX_RECORD_SIZE)
+                    {
+                        log.warn("Corrupt record in wallet journal " + file + ", ignoring the rest");
+                        return;
+                    }
+                    record = new byte[length];
+                    input.readFully(record);
+                    storedChecksum = input.readInt();
+                }
+                catch (EOFException e)
+                {
+                    // end of journal, or a record torn by a crash
+                    return;
+                }
+
+                checksum.reset();
+                checksum.update(record, 0, record.length);
+                if ((int) checksum.getValue() != storedChecksum)
+                {
+                    log.warn("Checksum mismatch in wallet journal " + file + ", ignoring the rest");
+                    return;
+                }
+
+                DataInputStream payload =
+                    new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1));
+                switch (record[0])
+                {
+                    case RECORD_TRANSACTION:
+                        TransactionRecord tx = TransactionRecord.read(payload);
+                        transactions.remove(tx.hash);
+                        transactions.put(tx.hash, tx);
+                        break;
+
+                    case RECORD_KEY:
+                        Protos.Key key = Protos.Key.parseFrom(payload);
+                        keys.put(key.getPublicKey(), key);
+                        break;
+
+                    case RECORD_EXTENSION:
+                        Protos.Extension extension = Protos.Extension.parseFrom(payload);
+                        extensions.put(extension.getId(), extension);
+                        break;
+
+                    case RECORD_LAST_BLOCK:
+                        lastBlockHash = new byte[32];
+                        payload.readFully(lastBlockHash);
+                        lastBlockHeight = payload.readInt();
+                        lastBlockTimeSecs = payload.readLong();
+                        break;
+
+                    default:
+                        log.warn("Unknown record type " + record[0] + " in wallet journal " + file);
+                        break;
+                }
+                records++;
+            }
+        }
+
+        /**
+         * Adds journaled keys, extension state and the last block seen to the parsed snapshot, and takes the
+         * journaled transactions out of it; applyTo(Wallet) adds them back with their journaled state.
+         */
+        public Protos.Wallet applyTo(Protos.Wallet walletProto)
+        {
+            Protos.Wallet.Builder builder = walletProto.toBuilder();
+
+            builder.clearTransaction();
+            for (Protos.Transaction tx : walletProto.getTransactionList())
+            {
+                if (transactions.containsKey(WalletProtobufSerializer.byteStringToHash(tx.getHash())))
+                {
+                    continue;
+                }
+                builder.addTransaction(withoutReferencesToJournaled(tx));
+            }
+
+            Set<ByteString> publicKeys = new HashSet<ByteString>();
+            for (Protos.Key key : walletProto.getKeyList())
+            {
+                publicKeys.add(key.getPublicKey());
+            }
+            for (Protos.Key key : keys.values())
+            {
+                if (!publicKeys.contains(key.getPublicKey()))
+                {
+                    builder.addKey(key);
+                }
+            }
+
+            if (!extensions.isEmpty())
+            {
+                builder.clearExtension();
+                for (Protos.Extension extension : walletProto.getExtensionList())
+                {
+                    if (!extensions.containsKey(extension.getId()))
+                    {
+                        builder.addExtension(extension);
+                    }
+                }
+                builder.addAllExtension(extensions.values());
+            }
+
+            if (lastBlockHash != null)
+            {
+                builder.setLastSeenBlockHash(ByteString.copyFrom(lastBlockHash));
+                builder.setLastSeenBlockHeight(lastBlockHeight);
+                builder.setLastSeenBlockTimeSecs(lastBlockTimeSecs);
+            }
+
+            return builder.build();
+        }
+
+        /** The journaled transactions are re-added, so references to them must not be resolved while loading. */
+        private Protos.Transaction withoutReferencesToJournaled(Protos.Transaction tx)
+        {
+            Protos.Transaction.Builder builder = null;
+
+            for (int i = 0; i < tx.getTransactionOutputCount(); i++)
+            {
+                Protos.TransactionOutput output = tx.getTransactionOutput(i);
+                if (output.hasSpentByTransactionHash() && transactions.containsKey(
+                    WalletProtobufSerializer.byteStringToHash(output.getSpentByTransactionHash())))
+                {
+                    if (builder == null)
+                    {
+                        builder = tx.toBuilder();
+                    }
+                    builder.getTransactionOutputBuilder(i).clearSpentByTransactionHash().clearSpentByTransactionIndex();
+                }
+            }
+
+            if (tx.hasConfidence() && tx.getConfidence().hasOverridingTransaction() && transactions.containsKey(
+                WalletProtobufSerializer.byteStringToHash(tx.getConfidence().getOverridingTransaction())))
+            {
+                if (builder == null)
+                {
+                    builder = tx.toBuilder();
+                }
+                builder.getConfidenceBuilder().clearOverridingTransaction();
+            }
+
+            return (builder != null) ? builder.build() : tx;
+        }
+
+        /**
+         * Adds the journaled transactions to the wallet built from applyTo(Protos.Wallet), reconnects the outputs
+         * they spend or that spend them, and brings depths up to the last block seen.
+         */
+        public void applyTo(Wallet wallet) throws IOException
+        {
+            for (TransactionRecord record : transactions.values())
+            {
+                wallet.addWalletTransaction(new WalletTransaction(record.pool, record.toTransaction(params)));
+            }
+
+            for (Transaction tx : wallet.getTransactions(true))
+            {
+                if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD)
+                {
+                    continue;
+                }
+
+                boolean journaled = transactions.containsKey(tx.getHash());
+                for (TransactionInput input : tx.getInputs())
+                {
+                    TransactionOutPoint outpoint = input.getOutpoint();
+                    if (!journaled && !transactions.containsKey(outpoint.getHash()))
+                    {
+                        continue;
+                    }
+
+                    Transaction parent = wallet.getTransaction(outpoint.getHash());
+                    if (parent == null || outpoint.getIndex() >= parent.getOutputs().size())
+                    {
+                        continue;
+                    }
+
+                    TransactionOutput output = parent.getOutput((int) outpoint.getIndex());
+                    if (output.isAvailableForSpending())
+                    {
+                        output.markAsSpent(input);
+                    }
+                }
+            }
+
+            int lastSeenHeight = wallet.getLastBlockSeenHeight();
+            if (lastSeenHeight > 0)
+            {
+                for (Transaction tx : wallet.getTransactions(true))
+                {
+                    TransactionConfidence confidence = tx.getConfidence();
+                    if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                    {
+                        int depth = lastSeenHeight - confidence.getAppearedAtChainHeight() + 1;
+                        if (depth > confidence.getDepthInBlocks())
+                        {
+                            confidence.setDepthInBlocks(depth);
+                        }
+                    }
+                }
+            }
+
+            log.info("Replayed " + records + " wallet journal records (" + transactions.size() + " transactions, "
+                     + keys.size() + " keys)");
+        }
+    }
+
+    /* --- Records --- */
+
+    private static class TransactionState
+    {
+        final WalletTransaction.Pool pool;
+        final TransactionConfidence.ConfidenceType type;
+        final TransactionConfidence.Source source;
+        final int appearedAtHeight;
+        final long updateTime;
+
+        TransactionState(WalletTransaction.Pool pool, TransactionConfidence.ConfidenceType type,
+                         TransactionConfidence.Source source, int appearedAtHeight, long updateTime)
+        {
+            this.pool = pool;
+            this.type = type;
+            this.source = source;
+            this.appearedAtHeight = appearedAtHeight;
+            this.updateTime = updateTime;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof TransactionState))
+            {
+                return false;
+            }
+            TransactionState other = (TransactionState) o;
+            return pool == other.pool && type == other.type && source == other.source
+                && appearedAtHeight == other.appearedAtHeight && updateTime == other.updateTime;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) updateTime ^ appearedAtHeight ^ pool.hashCode();
+        }
+    }
+
+    private static class TransactionRecord
+    {
+        Sha256Hash hash;
+        WalletTransaction.Pool pool;
+        TransactionConfidence.ConfidenceType type;
+        TransactionConfidence.Source source;
+        int appearedAtHeight;
+        long updateTime;
+        List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>();
+        List<Integer> blockOffsets = new ArrayList<Integer>();
+        byte[] bytes;
+
+        static TransactionRecord read(DataInputStream payload) throws IOException
+        {
+            TransactionRecord record = new TransactionRecord();
+            record.hash = new Sha256Hash(readBytes(payload, 32));
+            record.pool = POOLS[payload.readByte()];
+            record.type = CONFIDENCE_TYPES[payload.readByte()];
+            record.source = SOURCES[payload.readByte()];
+            record.appearedAtHeight = payload.readInt();
+            record.updateTime = payload.readLong();
+
+            int appearances = payload.readInt();
+            for (int i = 0; i < appearances; i++)
+            {
+                record.blockHashes.add(new Sha256Hash(readBytes(payload, 32)));
+                record.blockOffsets.add(payload.readInt());
+            }
+
+            record.bytes = readBytes(payload, payload.readInt());
+            return record;
+        }
+
+        Transaction toTransaction(NetworkParameters params) throws IOException
+        {
+            Transaction tx;
+            try
+            {
+                tx = new Transaction(params, bytes);
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Unreadable journaled transaction " + hash, e);
+            }
+
+            tx.setUpdateTime(new Date(updateTime));
+            for (int i = 0; i < blockHashes.size(); i++)
+            {
+                tx.addBlockAppearance(blockHashes.get(i), blockOffsets.get(i));
+            }
+
+            TransactionConfidence confidence = tx.getConfidence();
+            if (appearedAtHeight >= 0)
+            {
+                confidence.setAppearedAtChainHeight(appearedAtHeight);
+                confidence.setDepthInBlocks(1);
+            }
+            confidence.setConfidenceType(type);
+            confidence.setSource(source);
+            return tx;
+        }
+    }
+
+    /* --- Helpers --- */
+
+    /** The wallet pool the transaction is in, derived the same way the wallet moves transactions between pools. */
+    private static WalletTransaction.Pool poolOf(Transaction tx, Wallet wallet)
+    {
+        switch (tx.getConfidence().getConfidenceType())
+        {
+            case DEAD:
+                return WalletTransaction.Pool.DEAD;
+            case PENDING:
+                return WalletTransaction.Pool.PENDING;
+            default:
+                return tx.isEveryOwnedOutputSpent(wallet) ? WalletTransaction.Pool.SPENT
+                                                          : WalletTransaction.Pool.UNSPENT;
+        }
+    }
+
+    private static Protos.Key keyToProto(ECKey key)
+    {
+        Protos.Key.Builder builder = Protos.Key.newBuilder()
+            .setPublicKey(ByteString.copyFrom(key.getPubKey()))
+            .setCreationTimestamp(key.getCreationTimeSeconds() * 1000);
+
+        EncryptedPrivateKey encryptedPrivateKey = key.getEncryptedPrivateKey();
+        if (key.isEncrypted() && encryptedPrivateKey != null)
+        {
+            builder.setType(Protos.Key.Type.ENCRYPTED_SCRYPT_AES);
+            builder.setEncryptedPrivateKey(Protos.EncryptedPrivateKey.newBuilder()
+                .setInitialisationVector(ByteString.copyFrom(encryptedPrivateKey.getInitialisationVector()))
+                .setEncryptedPrivateKey(ByteString.copyFrom(encryptedPrivateKey.getEncryptedBytes())));
+        }
+        else
+        {
+            builder.setType(Protos.Key.Type.ORIGINAL);
+            byte[] privateKey = key.getPrivKeyBytes();
+            if (privateKey != null)
+            {
+                builder.setPrivateKey(ByteString.copyFrom(privateKey));
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static <T> int indexOf(T[] values, T value)
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] == value)
+            {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] readBytes(DataInputStream input, int length) throws IOException
+    {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
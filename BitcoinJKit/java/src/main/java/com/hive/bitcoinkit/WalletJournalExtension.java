@@ -0,0 +1,83 @@
+package com.hive.bitcoinkit;
+
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletExtension;
+import java.nio.ByteBuffer;
+import org.bitcoinj.wallet.Protos;
+
+/**
+ * Sequence number of the wallet snapshot. Every journal file records the sequence it continues from, so that on
+ * recovery only journals written after the loaded snapshot are replayed (see WalletJournal).
+ */
+public class WalletJournalExtension implements WalletExtension
+{
+    static final String EXTENSION_ID = WalletJournalExtension.class.getName();
+
+    private long snapshotSequence;
+
+    public WalletJournalExtension()
+    {
+    }
+
+    public synchronized long getSnapshotSequence()
+    {
+        return snapshotSequence;
+    }
+
+    public synchronized void setSnapshotSequence(long sequence)
+    {
+        snapshotSequence = sequence;
+    }
+
+    /** Reads the snapshot sequence straight from a parsed wallet, before the wallet object is built. */
+    public static long readSnapshotSequence(Protos.Wallet walletProto)
+    {
+        for (Protos.Extension extension : walletProto.getExtensionList())
+        {
+            if (EXTENSION_ID.equals(extension.getId()) && extension.getData().size() == 8)
+            {
+                return ByteBuffer.wrap(extension.getData().toByteArray()).getLong();
+            }
+        }
+        return 0;
+    }
+
+    /** Returns a Java package/class style name used to disambiguate this extension from others. */
+    @Override
+    public String getWalletExtensionID()
+    {
+        return EXTENSION_ID;
+    }
+
+    /**
+     * If this returns true, the mandatory flag is set when the wallet is serialized and attempts to load it without
+     * the extension being in the wallet will throw an exception. This method should not change its result during
+     * the objects lifetime.
+     */
+    @Override
+    public boolean isWalletExtensionMandatory()
+    {
+        return false;
+    }
+
+    /** Returns bytes that will be saved in the wallet. */
+    @Override
+    public byte[] serializeWalletExtension()
+    {
+        return ByteBuffer.allocate(8).putLong(getSnapshotSequence()).array();
+    }
+
+    /** Loads the contents of this object from the wallet. */
+    @Override
+    public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.put(data).flip();
+        setSnapshotSequence(buffer.getLong());
+    }
+
+    @Override
+    public String toString() {
+        return "WalletJournalExtension: snapshot sequence = " + getSnapshotSequence();
+    }
+}
@@ -0,0 +1,278 @@
+package org.slf4j.impl;
+
+import com.hive.bitcoinkit.Metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands log records to the native side from a thread of its own, so a slow log sink does not hold up the peer and
+ * block chain threads that log. Loggers publish into a LogRingBuffer; the delivery thread drains it and passes up
+ * to BATCH_SIZE messages per native call. What happens when the buffer is full is up to the overflow policy:
+ * drop the oldest record, drop records below a level (and wait with the others), or wait.
+ */
+final class AsyncLogDelivery implements Runnable
+{
+    static final int BATCH_SIZE = 256;
+
+    /** How long stop() waits for the queued records to be delivered. */
+    static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final Metrics.Counter delivered = Metrics.get().counter("logDelivered");
+    private static final Metrics.Counter batches = Metrics.get().counter("logBatches");
+    private static final Metrics.Counter droppedOldest = Metrics.get().counter("logDroppedOldest");
+    private static final Metrics.Counter droppedBelowLevel = Metrics.get().counter("logDroppedBelowLevel");
+    private static final Metrics.Counter waitedForSpace = Metrics.get().counter("logWaitedForSpace");
+    private static final Metrics.Counter droppedAtStop = Metrics.get().counter("logDroppedAtStop");
+
+    private final LogRingBuffer buffer;
+    private final CocoaLogger sink;
+    private final int overflowPolicy;
+    private final int overflowLevel;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile boolean sleeping;
+    private boolean batchesSupported;
+
+    // only used by the delivery thread; an exception takes a second message
+    private final String[] fileNames = new String[BATCH_SIZE * 2];
+    private final String[] methodNames = new String[BATCH_SIZE * 2];
+    private final int[] lineNumbers = new int[BATCH_SIZE * 2];
+    private final int[] levels = new int[BATCH_SIZE * 2];
+    private final String[] messages = new String[BATCH_SIZE * 2];
+
+    AsyncLogDelivery(CocoaLogger sink, int capacity, int overflowPolicy, int overflowLevel)
+    {
+        this.buffer = new LogRingBuffer(capacity);
+        this.sink = sink;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowLevel = overflowLevel;
+        this.batchesSupported = true;
+        this.running = true;
+
+        thread = new Thread(this, "Log delivery");
+        thread.setDaemon(true);
+        thread.start();
+
+        Metrics.get().gauge("logQueued", new Metrics.Gauge() {
+            public long getValue()
+            {
+                return buffer.size();
+            }
+        });
+    }
+
+    /**
+     * Queues a record; returns false if it has to be delivered by the caller, which is the case once delivery
+     * stopped and for the delivery thread itself.
+     */
+    boolean publish(CocoaLogger logger, String callerFQCN, int level, String msg, Throwable t,
+                    StackTraceElement callerData, Throwable stack)
+    {
+        if (!running || Thread.currentThread() == thread)
+        {
+            return false;
+        }
+
+        boolean waited = false;
+        while (!buffer.offer(logger, callerFQCN, level, msg, t, callerData, stack))
+        {
+            if (overflowPolicy == CocoaLogger.HILoggerOverflowDropOldest)
+            {
+                if (buffer.poll(null))
+                {
+                    droppedOldest.increment();
+                }
+            }
+            else if (overflowPolicy == CocoaLogger.HILoggerOverflowDropBelowLevel && level < overflowLevel)
+            {
+                droppedBelowLevel.increment();
+                return true;
+            }
+            else
+            {
+                if (!waited)
+                {
+                    waitedForSpace.increment();
+                    waited = true;
+                }
+                wakeUp();
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+                if (!running)
+                {
+                    return false;
+                }
+            }
+        }
+
+        if (sleeping)
+        {
+            wakeUp();
+        }
+        return true;
+    }
+
+    /**
+     * Stops taking records and waits until the queued ones are delivered, for at most STOP_TIMEOUT_MILLIS. If the
+     * sink hangs, the records still queued by then are dropped and counted.
+     */
+    void stop() throws InterruptedException
+    {
+        running = false;
+        wakeUp();
+        thread.join(STOP_TIMEOUT_MILLIS);
+
+        if (thread.isAlive())
+        {
+            // the batch arrays belong to the stuck thread, nothing can be delivered from here
+            long dropped = 0;
+            while (buffer.poll(null))
+            {
+                dropped++;
+            }
+            droppedAtStop.add(dropped);
+            return;
+        }
+
+        // a logger may have queued a record just as the thread finished
+        LogRingBuffer.Record record = new LogRingBuffer.Record();
+        int count;
+        while ((count = drain(record)) > 0)
+        {
+            deliver(count);
+        }
+    }
+
+    int getQueuedCount()
+    {
+        return buffer.size();
+    }
+
+    int getCapacity()
+    {
+        return buffer.capacity();
+    }
+
+    private void wakeUp()
+    {
+        sleeping = false;
+        LockSupport.unpark(thread);
+    }
+
+    public void run()
+    {
+        LogRingBuffer.Record record = new LogRingBuffer.Record();
+        while (true)
+        {
+            int count = drain(record);
+            if (count > 0)
+            {
+                deliver(count);
+                continue;
+            }
+
+            if (!running && buffer.isEmpty())
+            {
+                return;
+            }
+
+            // publishers look at the flag after adding, so either they see it or we see their record
+            sleeping = true;
+            if (buffer.isEmpty() && running)
+            {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    /** Takes records into the batch until it is full or the buffer empty, returning the number of messages. */
+    private int drain(LogRingBuffer.Record record)
+    {
+        int count = 0;
+        while (count < messages.length - 1 && buffer.poll(record))
+        {
+            count = add(record, count);
+        }
+        return count;
+    }
+
+    private int add(LogRingBuffer.Record record, int count)
+    {
+        StackTraceElement callerData = record.callerData;
+        if (record.stack != null)
+        {
+            callerData = CallerLocator.find(record.stack, record.callerFQCN, CocoaLogger.SUPER, true);
+        }
+
+        String fileName = null;
+        String methodName = null;
+        int lineNumber = 0;
+        if (callerData != null)
+        {
+            fileName = callerData.getFileName();
+            lineNumber = callerData.getLineNumber();
+            methodName = record.logger.getMethodName(callerData);
+        }
+
+        if (record.msg != null)
+        {
+            set(count++, fileName, methodName, lineNumber, record.level, record.msg);
+        }
+        if (record.t != null)
+        {
+            set(count++, fileName, methodName, lineNumber, record.level, "Exception logged: " + record.t);
+        }
+        record.clear();
+        return count;
+    }
+
+    private void set(int index, String fileName, String methodName, int lineNumber, int level, String message)
+    {
+        fileNames[index] = fileName;
+        methodNames[index] = methodName;
+        lineNumbers[index] = lineNumber;
+        levels[index] = level;
+        messages[index] = message;
+    }
+
+    private void deliver(int count)
+    {
+        try
+        {
+            if (batchesSupported)
+            {
+                try
+                {
+                    sink.receiveLogBatchFromJVM(fileNames, methodNames, lineNumbers, levels, messages, count);
+                }
+                catch (UnsatisfiedLinkError e)
+                {
+                    // a host that only registered the single message callback
+                    batchesSupported = false;
+                }
+            }
+            if (!batchesSupported)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    sink.receiveLogFromJVM(fileNames[i], methodNames[i], lineNumbers[i], levels[i], messages[i]);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // nowhere to log this, the log is what failed
+        }
+
+        delivered.add(count);
+        batches.increment();
+        Arrays.fill(fileNames, 0, count, null);
+        Arrays.fill(methodNames, 0, count, null);
+        Arrays.fill(messages, 0, count, null);
+    }
+}
@@ -0,0 +1,113 @@
+package org.slf4j.impl;
+
+import java.lang.reflect.Method;
+
+/**
+ * Finds the frame of a captured stack that called into the logger. Throwable.getStackTrace() turns every frame of
+ * the stack into a StackTraceElement, while the caller is only a few frames down; on JDKs that expose
+ * JavaLangAccess (7 and 8) a bounded walk reads just those frames one by one. Elsewhere, and when the caller is
+ * not within the bound, the whole stack trace is used.
+ */
+final class CallerLocator
+{
+    /** Frames read by the bounded walk: the logger's own frames, a marker variant and the caller. */
+    static final int MAX_WALK_FRAMES = 8;
+
+    private static final Object javaLangAccess;
+    private static final Method getStackTraceDepth;
+    private static final Method getStackTraceElement;
+
+    static
+    {
+        Object access = null;
+        Method depth = null;
+        Method element = null;
+        try
+        {
+            Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+            access = Class.forName("sun.misc.SharedSecrets").getMethod("getJavaLangAccess").invoke(null);
+            depth = accessClass.getMethod("getStackTraceDepth", Throwable.class);
+            element = accessClass.getMethod("getStackTraceElement", Throwable.class, int.class);
+
+            // make sure it works here before relying on it
+            element.invoke(access, new Throwable(), 0);
+        }
+        catch (Throwable e)
+        {
+            access = null;
+        }
+
+        javaLangAccess = access;
+        getStackTraceDepth = (access != null) ? depth : null;
+        getStackTraceElement = (access != null) ? element : null;
+    }
+
+    private CallerLocator()
+    {
+    }
+
+    static boolean canWalk()
+    {
+        return javaLangAccess != null;
+    }
+
+    /**
+     * The first frame below the frames of the given logger classes, or null. With bounded set only the first
+     * MAX_WALK_FRAMES frames are read where the JDK allows it.
+     */
+    static StackTraceElement find(Throwable stack, String selfFQCN, String superFQCN, boolean bounded)
+    {
+        if (bounded && javaLangAccess != null)
+        {
+            try
+            {
+                int depth = Math.min((Integer) getStackTraceDepth.invoke(javaLangAccess, stack), MAX_WALK_FRAMES);
+                boolean inLogger = false;
+                for (int i = 0; i < depth; i++)
+                {
+                    StackTraceElement frame = (StackTraceElement) getStackTraceElement.invoke(javaLangAccess, stack, i);
+                    boolean isLogger = isLoggerFrame(frame, selfFQCN, superFQCN);
+                    if (inLogger && !isLogger)
+                    {
+                        return frame;
+                    }
+                    inLogger |= isLogger;
+                }
+            }
+            catch (Exception e)
+            {
+                // read the whole stack trace below
+            }
+        }
+
+        return find(stack.getStackTrace(), selfFQCN, superFQCN);
+    }
+
+    private static StackTraceElement find(StackTraceElement[] frames, String selfFQCN, String superFQCN)
+    {
+        int selfIndex = -1;
+        for (int i = 0; i < frames.length; i++)
+        {
+            if (isLoggerFrame(frames[i], selfFQCN, superFQCN))
+            {
+                selfIndex = i;
+                break;
+            }
+        }
+
+        for (int i = selfIndex + 1; i < frames.length; i++)
+        {
+            if (!isLoggerFrame(frames[i], selfFQCN, superFQCN))
+            {
+                return frames[i];
+            }
+        }
+        return null;
+    }
+
+    private static boolean isLoggerFrame(StackTraceElement frame, String selfFQCN, String superFQCN)
+    {
+        String className = frame.getClassName();
+        return className.equals(selfFQCN) || className.equals(superFQCN);
+    }
+}
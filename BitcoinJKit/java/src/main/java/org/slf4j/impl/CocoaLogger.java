@@ -1,5 +1,8 @@
 package org.slf4j.impl;
 
+import com.hive.bitcoinkit.LatencyHistogram;
+import com.hive.bitcoinkit.Metrics;
+
 import org.slf4j.Logger;
 import org.slf4j.helpers.FormattingTuple;
 import org.slf4j.helpers.MarkerIgnoringBase;
@@ -15,11 +18,47 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
     public static final int HILoggerLevelWarn = 3;
     public static final int HILoggerLevelError = 4;
 
+    /** No file, method or line is passed on. */
+    public static final int HILoggerLocationOff = 0;
+    /**
+     * The stack is captured where the message is logged, the caller is looked up when the message is delivered:
+     * with asynchronous delivery that is on the delivery thread. The default.
+     */
+    public static final int HILoggerLocationLazy = 1;
+    /**
+     * The caller is looked up where the message is logged, reading only the top frames of the stack on JDK 7 and 8
+     * (JavaLangAccess). Later JDKs read the whole stack trace, as HILoggerLocationFull does.
+     */
+    public static final int HILoggerLocationFast = 2;
+    /** The whole stack trace is read, as it always used to be. */
+    public static final int HILoggerLocationFull = 3;
+
+    /** With asynchronous delivery and a full buffer, the oldest queued record makes room. */
+    public static final int HILoggerOverflowDropOldest = 0;
+    /** With asynchronous delivery and a full buffer, records below the overflow level are dropped, others wait. */
+    public static final int HILoggerOverflowDropBelowLevel = 1;
+    /** With asynchronous delivery and a full buffer, the logging thread waits for room. */
+    public static final int HILoggerOverflowBlock = 2;
+
+    public static final int DEFAULT_ASYNC_CAPACITY = 8192;
+
     private static String SELF = CocoaLogger.class.getName();
-    private static String SUPER = MarkerIgnoringBase.class.getName();
+    static String SUPER = MarkerIgnoringBase.class.getName();
+
+    private static final LatencyHistogram logLatency = Metrics.get().histogram("log");
 
-    private static int globalLevel = HILoggerLevelDebug;
-    private int level = HILoggerLevelNotSet;
+    private static volatile int globalLevel = HILoggerLevelDebug;
+    private static volatile int locationMode = HILoggerLocationLazy;
+    private static volatile AsyncLogDelivery asyncDelivery;
+    private volatile int level = HILoggerLevelNotSet;
+
+    // loggers are mostly named after the class that logs, and mostly log from the same method in a row
+    private final String simpleName;
+    private volatile CallerName lastCaller;
+
+    // the rate limit for this logger, looked up again when the rules change
+    private volatile LogRateLimiter.Limit rateLimit;
+    private volatile int rateLimitVersion = -1;
 
     public static int getGlobalLevel()
     {
@@ -31,14 +70,99 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
         globalLevel = newLevel;
     }
 
+    public static int getLocationMode()
+    {
+        return locationMode;
+    }
+
+    /** How the file, method and line of a log call are found, one of the HILoggerLocation constants. */
+    public static void setLocationMode(int newMode)
+    {
+        locationMode = newMode;
+    }
+
+    /**
+     * Delivers log messages from a background thread through a lock-free buffer of the given capacity, instead of
+     * calling the native side on the thread that logs. The overflow policy is one of the HILoggerOverflow
+     * constants; overflowLevel only applies to HILoggerOverflowDropBelowLevel. Replaces earlier settings.
+     */
+    public static void startAsynchronousDelivery(int capacity, int overflowPolicy, int overflowLevel)
+        throws InterruptedException
+    {
+        startAsynchronousDelivery(new CocoaLogger(AsyncLogDelivery.class.getName()), capacity, overflowPolicy,
+                                  overflowLevel);
+    }
+
+    static synchronized void startAsynchronousDelivery(CocoaLogger sink, int capacity, int overflowPolicy,
+                                                       int overflowLevel) throws InterruptedException
+    {
+        stopAsynchronousDelivery();
+        asyncDelivery = new AsyncLogDelivery(sink, capacity, overflowPolicy, overflowLevel);
+    }
+
+    /**
+     * Goes back to delivering on the logging thread, after the queued messages were delivered; waits a few seconds
+     * at most for a sink that doesn't return, then drops what is left (counted as logDroppedAtStop).
+     */
+    public static synchronized void stopAsynchronousDelivery() throws InterruptedException
+    {
+        AsyncLogDelivery delivery = asyncDelivery;
+        if (delivery != null)
+        {
+            asyncDelivery = null;
+            delivery.stop();
+        }
+    }
+
+    public static boolean isAsynchronousDeliveryEnabled()
+    {
+        return asyncDelivery != null;
+    }
+
+    /** Messages waiting for the delivery thread, 0 when delivering synchronously. */
+    public static int getQueuedMessageCount()
+    {
+        AsyncLogDelivery delivery = asyncDelivery;
+        return (delivery != null) ? delivery.getQueuedCount() : 0;
+    }
+
+    /**
+     * Limits the debug and info messages of loggers whose name starts with the prefix ("" for all) to
+     * loggerPerSecond in total and formatPerSecond per format string, each allowing bursts of the given size.
+     * A rate of 0 leaves that side unlimited. Suppressed messages are counted in a summary each logger logs
+     * periodically. The rule with the longest matching prefix applies; this replaces a rule of the same prefix.
+     */
+    public static void setRateLimit(String loggerPrefix, double loggerPerSecond, double formatPerSecond, int burst)
+    {
+        LogRateLimiter.setRule(loggerPrefix, loggerPerSecond, formatPerSecond, burst);
+    }
+
+    public static void clearRateLimit(String loggerPrefix)
+    {
+        LogRateLimiter.clearRule(loggerPrefix);
+    }
+
+    public static void clearRateLimits()
+    {
+        LogRateLimiter.clearRules();
+    }
+
+    /** How often loggers report suppressed messages, 10 seconds by default. */
+    public static void setRateLimitSummaryInterval(long millis)
+    {
+        LogRateLimiter.setSummaryInterval(millis);
+    }
+
     CocoaLogger(String name)
     {
         this.name = name;
+        this.simpleName = simpleClassName(name);
     }
 
     public int getLevel()
     {
-        return (level == HILoggerLevelNotSet) ? globalLevel : level;
+        int ownLevel = level;
+        return (ownLevel == HILoggerLevelNotSet) ? globalLevel : ownLevel;
     }
 
     public void setLevel(int newLevel)
@@ -53,7 +177,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void trace(String msg)
     {
-        if (isTraceEnabled())
+        if (isTraceEnabled() && isPermitted(msg))
         {
             log(SELF, HILoggerLevelDebug, msg, null);
         }
@@ -61,7 +185,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void trace(String format, Object arg)
     {
-        if (isTraceEnabled())
+        if (isTraceEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.format(format, arg);
             log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
@@ -70,7 +194,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void trace(String format, Object arg1, Object arg2)
     {
-        if (isTraceEnabled())
+        if (isTraceEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
             log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
@@ -79,7 +203,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void trace(String format, Object... argArray)
     {
-        if (isTraceEnabled())
+        if (isTraceEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
             log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
@@ -88,7 +212,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void trace(String msg, Throwable t)
     {
-        if (isTraceEnabled())
+        if (isTraceEnabled() && isPermitted(msg))
         {
             log(SELF, HILoggerLevelDebug, msg, t);
         }
@@ -101,7 +225,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void debug(String msg)
     {
-        if (isDebugEnabled())
+        if (isDebugEnabled() && isPermitted(msg))
         {
             log(SELF, HILoggerLevelDebug, msg, null);
         }
@@ -109,7 +233,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void debug(String format, Object arg)
     {
-        if (isDebugEnabled())
+        if (isDebugEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.format(format, arg);
             log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
@@ -118,7 +242,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void debug(String format, Object arg1, Object arg2)
     {
-        if (isDebugEnabled())
+        if (isDebugEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
             log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
@@ -127,7 +251,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void debug(String format, Object... argArray)
     {
-        if (isDebugEnabled())
+        if (isDebugEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
             log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
@@ -136,7 +260,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void debug(String msg, Throwable t)
     {
-        if (isDebugEnabled())
+        if (isDebugEnabled() && isPermitted(msg))
         {
             log(SELF, HILoggerLevelDebug, msg, t);
         }
@@ -149,7 +273,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void info(String msg)
     {
-        if (isInfoEnabled())
+        if (isInfoEnabled() && isPermitted(msg))
         {
             log(SELF, HILoggerLevelInfo, msg, null);
         }
@@ -157,7 +281,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void info(String format, Object arg)
     {
-        if (isInfoEnabled())
+        if (isInfoEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.format(format, arg);
             log(SELF, HILoggerLevelInfo, ft.getMessage(), ft.getThrowable());
@@ -166,7 +290,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void info(String format, Object arg1, Object arg2)
     {
-        if (isInfoEnabled())
+        if (isInfoEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
             log(SELF, HILoggerLevelInfo, ft.getMessage(), ft.getThrowable());
@@ -175,7 +299,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void info(String format, Object... argArray)
     {
-        if (isInfoEnabled())
+        if (isInfoEnabled() && isPermitted(format))
         {
             FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
             log(SELF, HILoggerLevelInfo, ft.getMessage(), ft.getThrowable());
@@ -184,7 +308,7 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
 
     public void info(String msg, Throwable t)
     {
-        if (isInfoEnabled())
+        if (isInfoEnabled() && isPermitted(msg))
         {
             log(SELF, HILoggerLevelInfo, msg, t);
         }
@@ -286,20 +410,91 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
         }
     }
 
+    LogRateLimiter.Limit getRateLimit()
+    {
+        int version = LogRateLimiter.getRulesVersion();
+        if (version != rateLimitVersion)
+        {
+            replaceRateLimit(version);
+        }
+        return rateLimit;
+    }
+
+    private synchronized void replaceRateLimit(int version)
+    {
+        if (version == rateLimitVersion)
+        {
+            return;
+        }
+
+        LogRateLimiter.Limit replaced = rateLimit;
+        rateLimit = LogRateLimiter.limitFor(name);
+        rateLimitVersion = version;
+
+        // the counts of the old buckets would be lost with them
+        if (replaced != null)
+        {
+            replaced.reportSuppressed(this, "before the rate limits changed");
+        }
+    }
+
+    private boolean isPermitted(String format)
+    {
+        LogRateLimiter.Limit limit = getRateLimit();
+        return limit == null || limit.tryAcquire(format);
+    }
+
+    /** Logs a message about suppressed messages, without location and past the rate limit. */
+    void logSummary(String msg)
+    {
+        AsyncLogDelivery delivery = asyncDelivery;
+        if (delivery == null || !delivery.publish(this, SELF, HILoggerLevelInfo, msg, null, null, null))
+        {
+            deliver(HILoggerLevelInfo, msg, null, null);
+        }
+    }
+
     private void log(String callerFQCN, int level, String msg, Throwable t)
+    {
+        long start = System.nanoTime();
+        int mode = locationMode;
+
+        // filling in the stack is cheap compared to reading it
+        Throwable stack = null;
+        StackTraceElement callerData = null;
+        if (mode == HILoggerLocationLazy)
+        {
+            stack = new Throwable();
+        }
+        else if (mode != HILoggerLocationOff)
+        {
+            callerData = CallerLocator.find(new Throwable(), callerFQCN, SUPER, mode != HILoggerLocationFull);
+        }
+
+        AsyncLogDelivery delivery = asyncDelivery;
+        if (delivery == null || !delivery.publish(this, callerFQCN, level, msg, t, callerData, stack))
+        {
+            if (stack != null)
+            {
+                callerData = CallerLocator.find(stack, callerFQCN, SUPER, true);
+            }
+            deliver(level, msg, t, callerData);
+        }
+
+        logLatency.recordSince(start);
+    }
+
+    private void deliver(int level, String msg, Throwable t, StackTraceElement callerData)
     {
         String fileName = null;
         String methodName = null;
         int lineNumber = 0;
 
-        StackTraceElement callerData = getCallerData(callerFQCN);
         if (callerData != null)
         {
             fileName = callerData.getFileName();
             lineNumber = callerData.getLineNumber();
-
-            String className = callerData.getClassName().replaceAll(".*\\.", "");
-            methodName = "[" + className + " " + callerData.getMethodName() + "]";
+            methodName = getMethodName(callerData);
         }
 
         if (msg != null)
@@ -313,42 +508,44 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger
         }
     }
 
-    // TODO
-    private StackTraceElement getCallerData(String callerFQCN)
+    /** "[SimpleClassName method]" of the frame, reused while the logger is called from the same method. */
+    String getMethodName(StackTraceElement callerData)
     {
-        StackTraceElement[] steArray = new Throwable().getStackTrace();
+        String className = callerData.getClassName();
+        String method = callerData.getMethodName();
 
-        int selfIndex = -1;
-        for (int i = 0; i < steArray.length; i++)
+        CallerName caller = lastCaller;
+        if (caller == null || !caller.method.equals(method) || !caller.className.equals(className))
         {
-            final String className = steArray[i].getClassName();
-            if (className.equals(callerFQCN) || className.equals(SUPER))
-            {
-                selfIndex = i;
-                break;
-            }
+            String simple = className.equals(name) ? simpleName : simpleClassName(className);
+            caller = new CallerName(className, method, "[" + simple + " " + method + "]");
+            lastCaller = caller;
         }
+        return caller.methodName;
+    }
 
-        int found = -1;
-        for (int i = selfIndex + 1; i < steArray.length; i++)
-        {
-            final String className = steArray[i].getClassName();
-            if (!(className.equals(callerFQCN) || className.equals(SUPER)))
-            {
-                found = i;
-                break;
-            }
-        }
+    private static String simpleClassName(String className)
+    {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
 
-        if (found != -1)
-        {
-            return steArray[found];
-        }
-        else
+    private static final class CallerName
+    {
+        final String className;
+        final String method;
+        final String methodName;
+
+        CallerName(String className, String method, String methodName)
         {
-            return null;
+            this.className = className;
+            this.method = method;
+            this.methodName = methodName;
         }
     }
 
     public native void receiveLogFromJVM(String fileName, String methodName, int lineNumber, int level, String msg);
+
+    /** The first count entries of the arrays are one message each, as for receiveLogFromJVM. */
+    public native void receiveLogBatchFromJVM(String[] fileNames, String[] methodNames, int[] lineNumbers, int[] levels,
+                                              String[] messages, int count);
 }
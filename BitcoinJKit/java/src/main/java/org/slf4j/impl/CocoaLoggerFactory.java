@@ -3,31 +3,40 @@ package org.slf4j.impl;
 import org.slf4j.ILoggerFactory;
 import org.slf4j.Logger;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 // based on http://javaeenotes.blogspot.com/2011/12/custom-slf4j-logger-adapter.html
 
 public class CocoaLoggerFactory implements ILoggerFactory
 {
-    private Map<String, CocoaLogger> loggerMap;
+    private ConcurrentMap<String, CocoaLogger> loggerMap;
 
     public CocoaLoggerFactory()
     {
-        loggerMap = new HashMap<String, CocoaLogger>();
+        loggerMap = new ConcurrentHashMap<String, CocoaLogger>();
     }
 
     @Override
     public Logger getLogger(String name)
     {
-        synchronized (loggerMap)
+        CocoaLogger logger = loggerMap.get(name);
+        if (logger == null)
         {
-            if (!loggerMap.containsKey(name))
+            CocoaLogger created = new CocoaLogger(name);
+            logger = loggerMap.putIfAbsent(name, created);
+            if (logger == null)
             {
-                loggerMap.put(name, new CocoaLogger(name));
+                logger = created;
             }
-
-            return loggerMap.get(name);
         }
+
+        return logger;
+    }
+
+    Collection<CocoaLogger> getLoggers()
+    {
+        return loggerMap.values();
     }
 }
@@ -0,0 +1,277 @@
+package org.slf4j.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hive.bitcoinkit.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limits for debug and info messages, set per logger name prefix; the longest matching prefix applies.
+ * A logger under a rule gets a token bucket for all its messages and one per format string (or message, for
+ * messages logged without arguments), so one chatty line cannot starve the others. The check runs before the
+ * message is formatted. Suppressed messages are counted and reported by each logger in a summary at a fixed
+ * interval. Warnings and errors are never limited.
+ */
+final class LogRateLimiter
+{
+    /** Format strings tracked per logger; messages beyond these only count against the logger's bucket. */
+    static final int MAX_FORMATS_PER_LOGGER = 256;
+
+    static final long DEFAULT_SUMMARY_INTERVAL_MILLIS = 10000;
+
+    private static final Metrics.Counter suppressed = Metrics.get().counter("logSuppressed");
+
+    private static final List<Rule> rules = new ArrayList<Rule>();
+    private static volatile int rulesVersion;
+    private static long summaryIntervalMillis = DEFAULT_SUMMARY_INTERVAL_MILLIS;
+    private static ScheduledExecutorService timer;
+    private static ScheduledFuture<?> summaries;
+
+    private LogRateLimiter()
+    {
+    }
+
+    static synchronized void setRule(String loggerPrefix, double loggerPerSecond, double formatPerSecond, int burst)
+    {
+        removeRule(loggerPrefix);
+        rules.add(new Rule(loggerPrefix, loggerPerSecond, formatPerSecond, Math.max(1, burst)));
+        rulesVersion++;
+        scheduleSummaries();
+    }
+
+    static synchronized void clearRule(String loggerPrefix)
+    {
+        removeRule(loggerPrefix);
+        rulesVersion++;
+    }
+
+    static synchronized void clearRules()
+    {
+        rules.clear();
+        rulesVersion++;
+    }
+
+    static synchronized void setSummaryInterval(long millis)
+    {
+        summaryIntervalMillis = Math.max(1, millis);
+        if (summaries != null)
+        {
+            summaries.cancel(false);
+            summaries = null;
+            scheduleSummaries();
+        }
+    }
+
+    static int getRulesVersion()
+    {
+        return rulesVersion;
+    }
+
+    /** The limit for a logger of the given name under the current rules, or null. */
+    static synchronized Limit limitFor(String loggerName)
+    {
+        Rule match = null;
+        for (Rule rule : rules)
+        {
+            if (loggerName.startsWith(rule.prefix) && (match == null || rule.prefix.length() > match.prefix.length()))
+            {
+                match = rule;
+            }
+        }
+        return (match != null) ? new Limit(match) : null;
+    }
+
+    private static void removeRule(String loggerPrefix)
+    {
+        for (int i = rules.size() - 1; i >= 0; i--)
+        {
+            if (rules.get(i).prefix.equals(loggerPrefix))
+            {
+                rules.remove(i);
+            }
+        }
+    }
+
+    private static void scheduleSummaries()
+    {
+        if (summaries != null)
+        {
+            return;
+        }
+        if (timer == null)
+        {
+            timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Log rate limit summaries").setDaemon(true).build());
+        }
+        summaries = timer.scheduleAtFixedRate(new Runnable() {
+            public void run()
+            {
+                reportSuppressed();
+            }
+        }, summaryIntervalMillis, summaryIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void reportSuppressed()
+    {
+        long seconds;
+        synchronized (LogRateLimiter.class)
+        {
+            seconds = Math.max(1, summaryIntervalMillis / 1000);
+        }
+        String period = "in the last " + seconds + "s";
+
+        CocoaLoggerFactory factory = (CocoaLoggerFactory) StaticLoggerBinder.getSingleton().getLoggerFactory();
+        for (CocoaLogger logger : factory.getLoggers())
+        {
+            Limit limit = logger.getRateLimit();
+            if (limit != null)
+            {
+                limit.reportSuppressed(logger, period);
+            }
+        }
+    }
+
+    private static final class Rule
+    {
+        final String prefix;
+        final double loggerPerSecond;
+        final double formatPerSecond;
+        final int burst;
+
+        Rule(String prefix, double loggerPerSecond, double formatPerSecond, int burst)
+        {
+            this.prefix = prefix;
+            this.loggerPerSecond = loggerPerSecond;
+            this.formatPerSecond = formatPerSecond;
+            this.burst = burst;
+        }
+    }
+
+    /** The buckets of one logger. */
+    static final class Limit
+    {
+        private final Rule rule;
+        private final Bucket loggerBucket;
+        private final ConcurrentHashMap<String, Bucket> formatBuckets;
+
+        Limit(Rule rule)
+        {
+            this.rule = rule;
+            this.loggerBucket = (rule.loggerPerSecond > 0) ? new Bucket(rule.loggerPerSecond, rule.burst) : null;
+            this.formatBuckets = new ConcurrentHashMap<String, Bucket>();
+        }
+
+        boolean tryAcquire(String format)
+        {
+            Bucket bucket = null;
+            if (rule.formatPerSecond > 0 && format != null)
+            {
+                bucket = formatBuckets.get(format);
+                if (bucket == null && formatBuckets.size() < MAX_FORMATS_PER_LOGGER)
+                {
+                    Bucket created = new Bucket(rule.formatPerSecond, rule.burst);
+                    bucket = formatBuckets.putIfAbsent(format, created);
+                    if (bucket == null)
+                    {
+                        bucket = created;
+                    }
+                }
+                if (bucket != null && !bucket.tryAcquire())
+                {
+                    suppressed.increment();
+                    return false;
+                }
+            }
+
+            if (loggerBucket != null && !loggerBucket.tryAcquire())
+            {
+                // a burst the logger's bucket holds back must not drain the format buckets as well
+                if (bucket != null)
+                {
+                    bucket.giveBack();
+                }
+                suppressed.increment();
+                return false;
+            }
+            return true;
+        }
+
+        /** Reports the messages suppressed since the last report, the period completing "suppressed ...". */
+        void reportSuppressed(CocoaLogger logger, String period)
+        {
+            for (Map.Entry<String, Bucket> entry : formatBuckets.entrySet())
+            {
+                long count = entry.getValue().takeSuppressed();
+                if (count > 0)
+                {
+                    logger.logSummary(count + " messages like \"" + entry.getKey() + "\" suppressed " + period);
+                }
+            }
+
+            long count = (loggerBucket != null) ? loggerBucket.takeSuppressed() : 0;
+            if (count > 0)
+            {
+                logger.logSummary(count + " further messages suppressed " + period);
+            }
+        }
+    }
+
+    /**
+     * Token bucket in its virtual scheduling form (GCRA): one atomic "theoretical arrival time" instead of a token
+     * count and a refill time, so taking a token is a single CAS. A message passes when accepting it would not push
+     * the theoretical time more than burst intervals past now.
+     */
+    static final class Bucket
+    {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong theoreticalArrival;
+        private final AtomicLong suppressedCount;
+
+        Bucket(double perSecond, int burst)
+        {
+            this.intervalNanos = Math.max(1, (long) (1000000000L / perSecond));
+            this.toleranceNanos = intervalNanos * burst;
+            this.theoreticalArrival = new AtomicLong(System.nanoTime());
+            this.suppressedCount = new AtomicLong();
+        }
+
+        boolean tryAcquire()
+        {
+            long now = System.nanoTime();
+            while (true)
+            {
+                long arrival = theoreticalArrival.get();
+                long next = Math.max(arrival, now) + intervalNanos;
+                if (next - now > toleranceNanos)
+                {
+                    suppressedCount.incrementAndGet();
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(arrival, next))
+                {
+                    return true;
+                }
+            }
+        }
+
+        /** Returns a token taken by tryAcquire() for a message that was not logged after all. */
+        void giveBack()
+        {
+            theoreticalArrival.addAndGet(-intervalNanos);
+        }
+
+        long takeSuppressed()
+        {
+            return suppressedCount.getAndSet(0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.slf4j.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue of log records, after Dmitry Vyukov's bounded MPMC queue.
+ * The records are allocated once; every slot carries a sequence number that tells producers whether it is free
+ * for the current lap and consumers whether it was published. Claiming a slot is one CAS on a shared position,
+ * publishing it one ordered store, and nothing is allocated.
+ *
+ * Consumers copy a record out into one of their own, so the slot can be reused at once. Producers may consume
+ * too, which is how the oldest record is dropped when the queue is full.
+ */
+final class LogRingBuffer
+{
+    static final class Record
+    {
+        CocoaLogger logger;
+        String callerFQCN;
+        int level;
+        String msg;
+        Throwable t;
+        StackTraceElement callerData;
+        Throwable stack;
+
+        void copyFrom(Record other)
+        {
+            logger = other.logger;
+            callerFQCN = other.callerFQCN;
+            level = other.level;
+            msg = other.msg;
+            t = other.t;
+            callerData = other.callerData;
+            stack = other.stack;
+        }
+
+        void clear()
+        {
+            logger = null;
+            callerFQCN = null;
+            msg = null;
+            t = null;
+            callerData = null;
+            stack = null;
+        }
+    }
+
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition;
+    private final AtomicLong dequeuePosition;
+
+    /** Capacity is rounded up to a power of two. */
+    LogRingBuffer(int capacity)
+    {
+        int size = 2;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        records = new Record[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        enqueuePosition = new AtomicLong();
+        dequeuePosition = new AtomicLong();
+    }
+
+    int capacity()
+    {
+        return records.length;
+    }
+
+    /** Records in the queue, exact only while no other thread uses it. */
+    int size()
+    {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, records.length));
+    }
+
+    boolean isEmpty()
+    {
+        return enqueuePosition.get() == dequeuePosition.get();
+    }
+
+    /** Adds a record, or returns false when the queue is full. */
+    boolean offer(CocoaLogger logger, String callerFQCN, int level, String msg, Throwable t,
+                  StackTraceElement callerData, Throwable stack)
+    {
+        long position = enqueuePosition.get();
+        int index;
+        while (true)
+        {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0)
+            {
+                if (enqueuePosition.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+                position = enqueuePosition.get();
+            }
+            else if (difference < 0)
+            {
+                // the slot still holds the record from the previous lap
+                return false;
+            }
+            else
+            {
+                position = enqueuePosition.get();
+            }
+        }
+
+        Record record = records[index];
+        record.logger = logger;
+        record.callerFQCN = callerFQCN;
+        record.level = level;
+        record.msg = msg;
+        record.t = t;
+        record.callerData = callerData;
+        record.stack = stack;
+
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /** Moves the oldest record into the given one, or returns false when the queue is empty. */
+    boolean poll(Record into)
+    {
+        long position = dequeuePosition.get();
+        int index;
+        while (true)
+        {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0)
+            {
+                if (dequeuePosition.compareAndSet(position, position + 1))
+                {
+                    break;
+                }
+                position = dequeuePosition.get();
+            }
+            else if (difference < 0)
+            {
+                // not published yet
+                return false;
+            }
+            else
+            {
+                position = dequeuePosition.get();
+            }
+        }
+
+        Record record = records[index];
+        if (into != null)
+        {
+            into.copyFrom(record);
+        }
+        record.clear();
+
+        sequences.lazySet(index, position + mask + 1);
+        return true;
+    }
+}